@@ -0,0 +1,129 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * BalancerBenchmark class measures read throughput on a skewed cluster before and after the BlockBalancer evens it out.
+ * It appends single-block files, which all land on D1, measures concurrent reads over all of them, keeps reading and
+ * checking every file while the DataNodes are balanced, and measures again.
+ * Start the DataNodes and a NameNode with a small block size and a balancer interval longer than the first measurement,
+ * e.g. "-Ddfs.blockSize=65536 -Ddfs.balancer.enabled=true -Ddfs.balancer.intervalMs=25000", then run
+ * "java -cp bin BalancerBenchmark [files] [seconds]".
+ */
+public class BalancerBenchmark {
+    private static final String IP = "127.0.0.1";
+    private static final int PORT = 5558;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int blockSize = Integer.getInteger("dfs.blockSize", 65536);
+
+        AsyncClient client = new AsyncClient(IP, PORT, "balancer-benchmark", 4, 32, 30000);
+        List<String> filenames = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            filenames.add("balance-" + i + ".txt");
+            client.append(filenames.get(i), String.valueOf((char) ('a' + i % 26)).repeat(blockSize)).join();
+        }
+
+        System.out.println("skewed:   " + usage());
+        measure(client, filenames, seconds); // Warms up the JIT of every process, the balancing phase would do it otherwise
+        measure(client, filenames, seconds);
+
+        // Keep reading while blocks move and their sources are freed, every read must still return the right content
+        long waitStart = System.nanoTime();
+        long verified = 0;
+        long wrong = 0;
+        long settledAt = Long.MAX_VALUE;
+        long freeDelayNanos = (Long.getLong("dfs.reclaim.delayMs", 5000) + 1000) * 1_000_000;
+        while (System.nanoTime() < settledAt) {
+            List<CompletableFuture<String>> batch = new ArrayList<>();
+            for (String filename : filenames) {
+                batch.add(client.read(filename));
+            }
+            for (int i = 0; i < files; i++) {
+                String content = batch.get(i).exceptionally(error -> null).join();
+                if (content != null && content.length() == blockSize && content.charAt(0) == 'a' + i % 26) {
+                    verified++;
+                } else {
+                    wrong++;
+                }
+            }
+            if (settledAt == Long.MAX_VALUE && isBalanced()) {
+                System.out.printf("balanced after %.1f s%n", (System.nanoTime() - waitStart) / 1e9);
+                settledAt = System.nanoTime() + freeDelayNanos; // Let the moved source blocks be freed
+            }
+        }
+        System.out.println("reads during balancing: " + verified + " correct, " + wrong + " wrong or failed");
+        System.out.println("balanced: " + usage());
+        measure(client, filenames, seconds);
+        client.close();
+        System.exit(0);
+    }
+
+    /**
+     * Reads the files round robin with many reads outstanding and prints the throughput.
+     */
+    private static void measure(AsyncClient client, List<String> filenames, int seconds) {
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        long reads = 0;
+        long bytes = 0;
+        List<CompletableFuture<String>> batch = new ArrayList<>();
+        while (System.nanoTime() < end) {
+            for (String filename : filenames) {
+                batch.add(client.read(filename));
+            }
+            for (CompletableFuture<String> read : batch) {
+                bytes += read.join().length();
+                reads++;
+            }
+            batch.clear();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %d reads in %.1f s: %.0f reads/s, %.1f MB/s%n", reads, elapsed, reads / elapsed,
+                bytes / elapsed / 1048576);
+    }
+
+    /**
+     * Checks whether the used blocks of the DataNodes differ by at most the balancer threshold, assuming 100 blocks each.
+     */
+    private static boolean isBalanced() throws IOException {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            int used = Integer.parseInt(call(i, "Usage").split(" ")[0]);
+            min = Math.min(min, used);
+            max = Math.max(max, used);
+        }
+        return max - min <= Integer.getInteger("dfs.balancer.threshold", 10);
+    }
+
+    /**
+     * Describes the used blocks of every DataNode.
+     */
+    private static String usage() throws IOException {
+        StringBuilder usage = new StringBuilder();
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            usage.append("D").append(i).append("=").append(call(i, "Usage").split(" ")[0]).append(" ");
+        }
+        return usage.toString().trim();
+    }
+
+    /**
+     * Sends one command to a DataNode.
+     */
+    private static String call(int dataNode, String command) throws IOException {
+        try (Socket socket = new Socket(IP, NameNode.getDataNodePort("D" + dataNode));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println(command);
+            return in.readLine();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * ChurnBenchmark class measures file deletion and block reclamation under sustained churn.
+ * It first times DELETE of single-block files and of large files, then keeps appending new multi-block files while
+ * deleting the oldest ones so that only a window of files stays live. Over the run the cluster has to store many times
+ * its block capacity, which only works if deleted blocks are reclaimed continuously. It reports appends that failed
+ * for lack of free blocks, the DELETE latency, the highest DataNode usage seen and checks the content of the live files.
+ * Start the DataNodes and a NameNode with a small block size and grace period, e.g.
+ * "-Ddfs.blockSize=1024 -Ddfs.reclaim.delayMs=1000", then run
+ * "java -cp bin ChurnBenchmark [seconds] [blocksPerFile] [liveFiles] [largeFileBlocks]".
+ */
+public class ChurnBenchmark {
+    private static final String IP = "127.0.0.1";
+    private static final int PORT = 5558;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int blocksPerFile = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int liveFiles = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int largeFileBlocks = args.length > 3 ? Integer.parseInt(args[3]) : 150;
+        int blockSize = Integer.getInteger("dfs.blockSize", 1024);
+        long delayMillis = Long.getLong("dfs.reclaim.delayMs", 1000);
+        int capacity = 0;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            capacity += Integer.parseInt(call(i, "Usage").split(" ")[1]);
+        }
+
+        AsyncClient client = new AsyncClient(IP, PORT, "churn-benchmark", 2, 16, 30000);
+        for (int size : new int[] {1, largeFileBlocks}) {
+            long[] latencies = new long[5];
+            for (int i = 0; i < latencies.length; i++) {
+                client.append("large-" + i, "x".repeat(size * blockSize)).join();
+                long start = System.nanoTime();
+                client.delete("large-" + i).join();
+                latencies[i] = System.nanoTime() - start;
+                Thread.sleep(delayMillis + 500); // Let the reclaimer free the blocks before the next file
+            }
+            Arrays.sort(latencies);
+            System.out.printf("delete of a %d-block file: median %.2f ms%n", size, latencies[2] / 1e6);
+        }
+
+        Deque<Integer> live = new ArrayDeque<>();
+        long[] deleteLatencies = new long[1 << 20];
+        int deletes = 0;
+        long appended = 0;
+        long failed = 0;
+        int maxUsed = 0;
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int file = 0; System.nanoTime() < end; file++) {
+            client.append("churn-" + file, content(file, blocksPerFile * blockSize)).join();
+            if (client.getBlockCount("churn-" + file).join() == blocksPerFile) {
+                live.addLast(file);
+                appended += blocksPerFile;
+            } else {
+                failed++; // No free blocks, the NameNode stored nothing
+                Thread.sleep(10);
+            }
+            if (live.size() > liveFiles) {
+                long start = System.nanoTime();
+                client.delete("churn-" + live.removeFirst()).join();
+                deleteLatencies[deletes++ % deleteLatencies.length] = System.nanoTime() - start;
+            }
+            if (file % 20 == 0) {
+                maxUsed = Math.max(maxUsed, usedBlocks());
+            }
+        }
+        int wrong = 0;
+        for (int file : live) {
+            if (!content(file, blocksPerFile * blockSize).replace(" ", "").equals(client.read("churn-" + file).join().replace(" ", ""))) {
+                wrong++;
+            }
+        }
+        long[] sorted = Arrays.copyOf(deleteLatencies, Math.min(deletes, deleteLatencies.length));
+        Arrays.sort(sorted);
+        System.out.printf("churn: %d blocks appended (%.1fx the capacity of %d), %d appends failed, %d deletes, "
+                        + "delete p50 %.2f ms, p99 %.2f ms%n", appended, (double) appended / capacity, capacity, failed,
+                deletes, sorted[sorted.length / 2] / 1e6, sorted[sorted.length * 99 / 100] / 1e6);
+        System.out.printf("highest usage %d blocks, live files hold %d, live files with wrong content: %d%n",
+                maxUsed, live.size() * blocksPerFile, wrong);
+        Thread.sleep(delayMillis * 2 + 1000);
+        System.out.printf("usage after the grace period: %d blocks%n", usedBlocks());
+        client.close();
+        System.exit(0);
+    }
+
+    /**
+     * Builds the content of a file, a character that depends on the file repeated.
+     */
+    private static String content(int file, int length) {
+        return String.valueOf((char) ('a' + file % 26)).repeat(length);
+    }
+
+    /**
+     * Gets the number of used blocks of all DataNodes.
+     */
+    private static int usedBlocks() throws IOException {
+        int used = 0;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            used += Integer.parseInt(call(i, "Usage").split(" ")[0]);
+        }
+        return used;
+    }
+
+    /**
+     * Sends one command to a DataNode.
+     */
+    private static String call(int dataNode, String command) throws IOException {
+        try (Socket socket = new Socket(IP, NameNode.getDataNodePort("D" + dataNode));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println(command);
+            return in.readLine();
+        }
+    }
+}
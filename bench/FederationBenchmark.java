@@ -0,0 +1,61 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * FederationBenchmark class measures metadata operations per second against the NameNodes of a partition table.
+ * It keeps many BLOCKS requests outstanding over a large set of filenames, so the NameNodes only do metadata work,
+ * and reports the total rate and how the requests were spread over the NameNodes.
+ * Usage: "java -Ddfs.namenodes=127.0.0.1:5558,127.0.0.1:5559 -cp bin FederationBenchmark [seconds] [clients]".
+ */
+public class FederationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        PartitionTable partitionTable = PartitionTable.fromProperty();
+        List<String> filenames = new ArrayList<>();
+        Map<String, Integer> perNameNode = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            filenames.add("meta-" + i + ".txt");
+            perNameNode.merge(partitionTable.ownerOf(filenames.get(i)), 1, Integer::sum);
+        }
+
+        long[] completed = new long[clients];
+        List<Thread> threads = new ArrayList<>();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            int index = c;
+            AsyncClient client = new AsyncClient(partitionTable, "meta-" + c, 2, 128, 30000);
+            Thread thread = new Thread(() -> {
+                List<CompletableFuture<Integer>> batch = new ArrayList<>();
+                int next = index * 1000;
+                while (System.nanoTime() < end) {
+                    for (int i = 0; i < 128; i++) {
+                        batch.add(client.getBlockCount(filenames.get(next++ % filenames.size())));
+                    }
+                    for (CompletableFuture<Integer> request : batch) {
+                        request.join();
+                        completed[index]++;
+                    }
+                    batch.clear();
+                }
+                client.close();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        long total = 0;
+        for (int c = 0; c < clients; c++) {
+            threads.get(c).join();
+            total += completed[c];
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d NameNode(s): %d metadata ops in %.1f s, %.0f ops/s, files per NameNode %s%n",
+                partitionTable.getNameNodes().size(), total, elapsed, total / elapsed, perNameNode);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * LogBenchmark class measures the cost of logging an append request the way the NameNode used to
+ * (a synchronous System.out.println of the whole line) against the asynchronous Log class,
+ * both with the statement disabled and enabled with payload truncation.
+ * Run it with standard output redirected to a file, e.g. "java -cp bin LogBenchmark 1048576 200 > bench.log";
+ * the results are printed to standard error.
+ */
+public class LogBenchmark {
+
+    public static void main(String[] args) {
+        int payloadSize = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 20;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        StringBuilder payload = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            payload.append((char) ('a' + i % 26));
+        }
+        String line = "APPEND bench.txt " + payload;
+        int logIterations = iterations * 100; // Log calls are cheap enough to need more samples
+
+        for (int round = 0; round < 2; round++) { // First round warms up the JIT
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                System.out.println("[DEBUG] NameNode received: " + line);
+            }
+            report(round, "System.out.println", iterations, System.nanoTime() - start);
+
+            Log.setLevel(Log.Level.INFO);
+            start = System.nanoTime();
+            for (int i = 0; i < logIterations; i++) {
+                Log.debug("NameNode received: {}", line);
+            }
+            report(round, "Log.debug (disabled)", logIterations, System.nanoTime() - start);
+
+            Log.setLevel(Log.Level.DEBUG);
+            start = System.nanoTime();
+            for (int i = 0; i < logIterations; i++) {
+                Log.debug("NameNode received: {}", line);
+            }
+            report(round, "Log.debug (enabled, truncated)", logIterations, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Prints the per-call cost and call rate of one measured loop.
+     */
+    private static void report(int round, String label, int iterations, long nanos) {
+        if (round == 0) {
+            return;
+        }
+        System.err.printf("%-32s %10.2f us/call %12.0f calls/s%n",
+                label, nanos / 1000.0 / iterations, iterations * 1e9 / nanos);
+    }
+}
@@ -0,0 +1,157 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * MetadataFootprint class measures the heap used by the NameNode file map and the cost of resolving blocks.
+ * It fills either the map layout the NameNode used before, a HashMap from filename to a list of Pair objects, or a
+ * CompactBlockMap with the same files and blocks, and reports the retained heap per block. It then resolves the blocks
+ * of random files to a DataNode port and block number, the way read() does, and reports the time and the bytes
+ * allocated per block.
+ * Usage: "java -Xmx4g -cp bin MetadataFootprint [legacy|compact] [files] [blocksPerFile]". Run each layout in its own
+ * JVM so one does not skew the heap figures of the other.
+ */
+public class MetadataFootprint {
+
+    public static void main(String[] args) {
+        String layout = args.length > 0 ? args[0] : "compact";
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int blocksPerFile = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+        long baseline = usedHeap();
+        long startTime = System.nanoTime();
+        Object map = "legacy".equals(layout) ? fillLegacy(files, blocksPerFile) : fillCompact(files, blocksPerFile);
+        long fillNanos = System.nanoTime() - startTime;
+        long retained = usedHeap() - baseline;
+        long blocks = (long) files * blocksPerFile;
+        System.out.printf("%-7s %,d files, %,d blocks: %,d MB retained, %.1f bytes per block (%.1f per file), filled in %.1f s%n",
+                layout, files, blocks, retained >> 20, (double) retained / blocks, (double) retained / files, fillNanos / 1e9);
+
+        for (int round = 0; round < 3; round++) { // Earlier rounds warm up the JIT
+            long[] result = "legacy".equals(layout) ? resolveLegacy(map, files) : resolveCompact(map, files);
+            if (round == 2) {
+                System.out.printf("%-7s resolve: %.1f ns and %.1f bytes allocated per block%n", layout,
+                        (double) result[0] / result[2], (double) result[1] / result[2]);
+            }
+        }
+    }
+
+    /**
+     * Builds the map the way the NameNode did before, a new DataNode ID String and Pair for every block.
+     */
+    private static Map<String, List<Pair>> fillLegacy(int files, int blocksPerFile) {
+        Map<String, List<Pair>> map = new HashMap<>();
+        for (int f = 0; f < files; f++) {
+            List<Pair> blockList = new ArrayList<>();
+            for (int b = 0; b < blocksPerFile; b++) {
+                blockList.add(new Pair("D" + ((f + b) % NameNode.DATA_NODE_COUNT + 1), f * blocksPerFile + b));
+            }
+            map.put(filename(f), blockList);
+        }
+        return map;
+    }
+
+    /**
+     * Builds a CompactBlockMap with the same files and blocks.
+     */
+    private static CompactBlockMap fillCompact(int files, int blocksPerFile) {
+        CompactBlockMap map = new CompactBlockMap();
+        long[] blockList = new long[blocksPerFile];
+        for (int f = 0; f < files; f++) {
+            for (int b = 0; b < blocksPerFile; b++) {
+                blockList[b] = map.pack("D" + ((f + b) % NameNode.DATA_NODE_COUNT + 1), f * blocksPerFile + b);
+            }
+            map.append(filename(f), blockList);
+        }
+        return map;
+    }
+
+    /**
+     * Resolves the blocks of random files like the NameNode read() did before: copy the list, parse every DataNode ID.
+     *
+     * @return The elapsed nanoseconds, bytes allocated and blocks resolved.
+     */
+    @SuppressWarnings("unchecked")
+    private static long[] resolveLegacy(Object map, int files) {
+        Map<String, List<Pair>> legacy = (Map<String, List<Pair>>) map;
+        String[] names = randomNames(files);
+        long checksum = 0;
+        long resolved = 0;
+        long allocated = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (String name : names) {
+            List<Pair> blockList = new ArrayList<>(legacy.getOrDefault(name, new ArrayList<>()));
+            for (Pair block : blockList) {
+                checksum += NameNode.getDataNodePort(block.getDataNodeId()) + block.getBlockNumber();
+                resolved++;
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return new long[] {elapsed, allocatedBytes() - allocated, checksum == 0 ? 1 : resolved};
+    }
+
+    /**
+     * Resolves the blocks of random files the way the NameNode read() does now, one block at a time.
+     *
+     * @return The elapsed nanoseconds, bytes allocated and blocks resolved.
+     */
+    private static long[] resolveCompact(Object map, int files) {
+        CompactBlockMap compact = (CompactBlockMap) map;
+        String[] names = randomNames(files);
+        long checksum = 0;
+        long resolved = 0;
+        long allocated = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (String name : names) {
+            int count = compact.getBlockCount(name);
+            for (int i = 0; i < count; i++) {
+                long block = compact.getBlock(name, i);
+                checksum += compact.getDataNodePort(block) + CompactBlockMap.getBlockNumber(block);
+                resolved++;
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+        return new long[] {elapsed, allocatedBytes() - allocated, checksum == 0 ? 1 : resolved};
+    }
+
+    /**
+     * Picks the names of 100000 random existing files, built before measuring so their Strings are not counted.
+     */
+    private static String[] randomNames(int files) {
+        Random random = new Random(42);
+        String[] names = new String[100_000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = filename(random.nextInt(files));
+            names[i].hashCode(); // Cache the hash like a request string that was already looked up
+        }
+        return names;
+    }
+
+    /**
+     * Gets the name of the file with the given number.
+     */
+    private static String filename(int f) {
+        return "/user/data/part-" + f + ".log";
+    }
+
+    /**
+     * Gets the bytes allocated by the current thread so far.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * Gets the heap in use after collecting garbage.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
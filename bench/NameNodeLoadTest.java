@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NameNodeLoadTest class overloads a running NameNode and reports how a well-behaved client fares.
+ * A number of heavy clients keep as many reads of a large file outstanding as they are allowed, while one light
+ * client reads a small file one request at a time. The latency percentiles of the light client show whether fair
+ * scheduling keeps its tail bounded, and the heavy client counters show how much work was admitted, rejected as busy
+ * dropped after its deadline or given up on by the client.
+ * Usage: "java -cp bin NameNodeLoadTest [heavyClients] [seconds] [heavyTimeoutMs]" against a NameNode on port 5558.
+ */
+public class NameNodeLoadTest {
+    private static final String IP = "127.0.0.1";
+    private static final int PORT = 5558;
+
+    public static void main(String[] args) throws Exception {
+        int heavyClients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long heavyTimeout = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+        AsyncClient setup = new AsyncClient(IP, PORT, "setup", 1, 16, 30000);
+        setup.append("load-large.txt", "x".repeat(256 * 1024)).join();
+        setup.append("load-small.txt", "hello").join();
+        setup.close();
+
+        AtomicLong completed = new AtomicLong();
+        AtomicLong busy = new AtomicLong();
+        AtomicLong expired = new AtomicLong();
+        AtomicLong timedOut = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long endTime = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> heavy = new ArrayList<>();
+        for (int i = 0; i < heavyClients; i++) {
+            AsyncClient client = new AsyncClient(IP, PORT, "heavy-" + i, 2, 64, heavyTimeout);
+            Semaphore outstanding = new Semaphore(64);
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < endTime) {
+                    // Waits once 64 reads are outstanding, so the client always keeps the NameNode saturated
+                    outstanding.acquireUninterruptibly();
+                    client.read("load-large.txt").whenComplete((content, error) -> {
+                        outstanding.release();
+                        if (error == null) {
+                            completed.incrementAndGet();
+                        } else if (String.valueOf(error.getMessage()).contains("Server busy")) {
+                            busy.incrementAndGet();
+                        } else if (String.valueOf(error.getMessage()).contains("Deadline exceeded")) {
+                            expired.incrementAndGet();
+                        } else if (error instanceof TimeoutException || error.getCause() instanceof TimeoutException) {
+                            timedOut.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    });
+                }
+                try {
+                    Thread.sleep(heavyTimeout); // Every outstanding read has completed or timed out by then
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                client.close();
+            }, "heavy-" + i);
+            thread.start();
+            heavy.add(thread);
+        }
+
+        AsyncClient light = new AsyncClient(IP, PORT, "light", 1, 1, 30000);
+        List<Long> latencies = new ArrayList<>();
+        int lightErrors = 0;
+        Thread.sleep(500); // Let the heavy clients fill the queue first
+        while (System.nanoTime() < endTime) {
+            long start = System.nanoTime();
+            CompletableFuture<String> read = light.read("load-small.txt");
+            try {
+                read.join();
+                latencies.add(System.nanoTime() - start);
+            } catch (RuntimeException e) {
+                lightErrors++;
+            }
+            Thread.sleep(10);
+        }
+        light.close();
+        for (Thread thread : heavy) {
+            thread.join();
+        }
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        System.out.printf("light: %d reads, %d errors, p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", sorted.length, lightErrors,
+                percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        System.out.printf("heavy: %d completed, %d busy, %d expired, %d timed out, %d other errors%n",
+                completed.get(), busy.get(), expired.get(), timedOut.get(), failed.get());
+        System.exit(0);
+    }
+
+    /**
+     * Gets a percentile of sorted latencies in milliseconds.
+     */
+    private static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * StorageBenchmark class compares the block store engines of a DataNode on small block writes.
+ * For each engine it writes a set of small blocks, then overwrites random blocks, syncing the store after every
+ * "syncEvery" writes the way a GROUP durability window does (1 behaves like SYNC), and reports writes per second,
+ * read throughput and the number of files the store leaves on disk. The open file descriptors of the process are
+ * reported too, a store that keeps files open pays for it there.
+ * Usage: "java -cp bin StorageBenchmark [blocks] [blockSize] [writes] [syncEvery]". The stores are created under
+ * "./storage_bench" in the working directory and deleted afterwards.
+ */
+public class StorageBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int writes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        int syncEvery = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+        System.setProperty("dfs.segment.compactIntervalMs", "1000");
+
+        for (int round = 0; round < 2; round++) { // First round warms up the JIT
+            Path directory = Paths.get("./storage_bench");
+            deleteRecursively(directory);
+            Files.createDirectories(directory.resolve("file"));
+            Files.createDirectories(directory.resolve("segment"));
+            run(round, "file", new FileBlockStore(directory.resolve("file")), directory.resolve("file"),
+                    blocks, blockSize, writes, syncEvery);
+            SegmentBlockStore segmentStore = new SegmentBlockStore(directory.resolve("segment"), new Metrics("bench"));
+            segmentStore.start();
+            run(round, "segment", segmentStore, directory.resolve("segment"), blocks, blockSize, writes, syncEvery);
+            segmentStore.compact();
+            segmentStore.shutdown();
+            if (round == 1) {
+                System.out.printf("%-8s after compaction: %d files, %.1f MB on disk%n", "segment",
+                        countFiles(directory.resolve("segment")), diskBytes(directory.resolve("segment")) / 1e6);
+            }
+            deleteRecursively(directory);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Writes, overwrites and reads the blocks of one store and prints the results.
+     */
+    private static void run(int round, String label, BlockStore store, Path directory, int blocks, int blockSize,
+            int writes, int syncEvery) throws IOException {
+        byte[] data = new byte[blockSize];
+        Random random = new Random(42);
+        random.nextBytes(data);
+        long start = System.nanoTime();
+        for (int i = 0; i < blocks; i++) {
+            store.create(i);
+            store.write(i, data);
+            if (i % syncEvery == syncEvery - 1) {
+                store.sync();
+            }
+        }
+        store.sync();
+        long fillNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            store.write(random.nextInt(blocks), data);
+            if (i % syncEvery == syncEvery - 1) {
+                store.sync();
+            }
+        }
+        store.sync();
+        long overwriteNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < writes; i++) {
+            bytes += store.read(random.nextInt(blocks)).length;
+        }
+        long readNanos = System.nanoTime() - start;
+        if (round == 0) {
+            return;
+        }
+        System.out.printf("%-8s fill %8.0f writes/s, overwrite %8.0f writes/s, read %8.0f reads/s (%d MB), "
+                        + "%d files, %.1f MB on disk, %d open fds%n", label,
+                blocks / (fillNanos / 1e9), writes / (overwriteNanos / 1e9), writes / (readNanos / 1e9),
+                bytes >> 20, countFiles(directory), diskBytes(directory) / 1e6, countOpenFiles());
+    }
+
+    /**
+     * Counts the files in a directory.
+     */
+    private static long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Sums the sizes of the files in a directory.
+     */
+    private static long diskBytes(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    /**
+     * Counts the file descriptors open in this process, or -1 where /proc is not available.
+     */
+    private static long countOpenFiles() {
+        String[] descriptors = new File("/proc/self/fd").list();
+        return descriptors == null ? -1 : descriptors.length;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (Files.notExists(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * TierBenchmark class measures DataNode read latency of a hot set of blocks with and without the memory tier.
+ * It fills an in-process DataNode with more data than the memory tier can hold, then reads a small hot set of blocks
+ * mixed with occasional reads of cold blocks and reports the hot-set latency. Blocks are read the way the DataNode serves
+ * them, sent to a stream, which here discards them.
+ * Usage: "java -cp bin TierBenchmark [blocks] [blockSize] [hotBlocks] [reads]". The blocks are stored under
+ * "./data_65520" and "./data_65521" in the working directory.
+ */
+public class TierBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 90;
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 256 * 1024;
+        int hotBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int reads = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+        long tierCapacity = (long) blockSize * blocks / 4; // Holds a quarter of the data, the disk holds all of it
+        System.setProperty("dfs.tier.memory.slotBytes", String.valueOf(blockSize));
+
+        for (int round = 0; round < 2; round++) { // First round warms up the JIT
+            System.setProperty("dfs.tier.memory.capacityBytes", "0");
+            run(round, "disk only", new DataNode(65520), blocks, blockSize, hotBlocks, reads);
+            System.setProperty("dfs.tier.memory.capacityBytes", String.valueOf(tierCapacity));
+            run(round, "memory tier", new DataNode(65521), blocks, blockSize, hotBlocks, reads);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Writes the blocks, reads the hot set and prints the latency percentiles.
+     */
+    private static void run(int round, String label, DataNode dataNode, int blocks, int blockSize, int hotBlocks, int reads)
+            throws IOException {
+        OutputStream out = OutputStream.nullOutputStream();
+        int[] ids = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            ids[i] = dataNode.allocateBlock();
+            dataNode.writeBlock(ids[i], String.valueOf((char) ('a' + i % 26)).repeat(blockSize));
+        }
+        Random random = new Random(42);
+        long[] latencies = new long[reads];
+        for (int i = 0; i < reads; i++) {
+            if (i % 10 == 9) {
+                dataNode.sendBlock(ids[hotBlocks + random.nextInt(blocks - hotBlocks)], out); // Cold read
+            }
+            int id = ids[random.nextInt(hotBlocks)];
+            long start = System.nanoTime();
+            dataNode.sendBlock(id, out);
+            latencies[i] = System.nanoTime() - start;
+        }
+        for (int id : ids) {
+            dataNode.releaseBlock(id);
+        }
+        if (round == 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+        Map<String, Long> metrics = dataNode.getMetrics().snapshot();
+        System.out.printf("%-12s hot-set read p50 %6.1f us, p99 %6.1f us, memory hits %d, misses %d%n", label,
+                latencies[reads / 2] / 1e3, latencies[reads * 99 / 100] / 1e3,
+                metrics.getOrDefault("tier.memory.hits", 0L), metrics.getOrDefault("tier.memory.misses", 0L));
+    }
+}
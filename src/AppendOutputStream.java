@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AppendOutputStream class buffers appended bytes on the client and ships them to the NameNode in large appends.
+ * Bytes are accumulated until a full block is buffered, the flush interval has passed, or flush() or close() is called,
+ * and each shipment is a single APPEND on one persistent connection, which moves to the new owner of the file if the
+ * NameNode answers that the file has moved. Many small records therefore cost one round trip
+ * and one block instead of one each.
+ *
+ * The block size and flush interval default to the "dfs.blockSize" (4194304) and "dfs.client.flushIntervalMs" (1000)
+ * system properties. Content is sent as UTF-8 text on a line-oriented protocol, so line breaks cannot be appended.
+ */
+public class AppendOutputStream extends OutputStream {
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "append-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Client client; // Persistent connection to the NameNode that owns the file
+    private final String filename; // File the bytes are appended to
+    private final byte[] buffer; // Bytes not yet shipped
+    private int count; // Number of valid bytes in the buffer
+    private boolean closed;
+    private IOException failure; // Error of a background flush, reported on the next call
+    private final ScheduledFuture<?> flushTask; // Periodic flush, null if disabled
+
+    /**
+     * Constructor to open an append stream using the block size and flush interval from the system properties.
+     *
+     * @param ip The IP address of the NameNode.
+     * @param port The port number of the NameNode.
+     * @param filename The file to append to.
+     * @throws IOException If the NameNode cannot be reached.
+     */
+    public AppendOutputStream(String ip, int port, String filename) throws IOException {
+        this(ip, port, filename, Integer.getInteger("dfs.blockSize", 4194304), Long.getLong("dfs.client.flushIntervalMs", 1000));
+    }
+
+    /**
+     * Constructor to open an append stream.
+     *
+     * @param ip The IP address of the NameNode.
+     * @param port The port number of the NameNode.
+     * @param filename The file to append to.
+     * @param blockSize The number of bytes buffered before an append is shipped.
+     * @param flushIntervalMillis How often buffered bytes are shipped regardless of size, 0 to disable.
+     * @throws IOException If the NameNode cannot be reached.
+     */
+    public AppendOutputStream(String ip, int port, String filename, int blockSize, long flushIntervalMillis)
+            throws IOException {
+        this.filename = filename;
+        this.buffer = new byte[blockSize];
+        this.client = new Client();
+        client.connect(ip, port);
+        if (flushIntervalMillis > 0) {
+            flushTask = flusher.scheduleWithFixedDelay(this::flushInBackground, flushIntervalMillis,
+                    flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flushTask = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length) throws IOException {
+        ensureOpen();
+        for (int i = offset; i < offset + length; i++) {
+            if (data[i] == '\n' || data[i] == '\r') {
+                throw new IOException("Line breaks cannot be appended over the line-oriented protocol");
+            }
+        }
+        while (length > 0) {
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(data, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+            if (count == buffer.length) {
+                ship(false);
+            }
+        }
+    }
+
+    /**
+     * Ships all buffered bytes as one append.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        ensureOpen();
+        ship(true);
+    }
+
+    /**
+     * Ships the remaining bytes and closes the connection.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            ship(true);
+        } finally {
+            closed = true;
+            if (flushTask != null) {
+                flushTask.cancel(false);
+            }
+            client.sendMessage(".");
+            client.stopConnection();
+        }
+    }
+
+    /**
+     * Periodic flush, remembering any error for the writing thread.
+     */
+    private synchronized void flushInBackground() {
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            ship(true);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Sends buffered bytes as a single APPEND. A partial block keeps any incomplete trailing UTF-8 character
+     * in the buffer so characters are never split between appends.
+     *
+     * @param all Whether to send everything, including an incomplete trailing character.
+     */
+    private void ship(boolean all) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int length = all ? count : completeCharacters();
+        String content = new String(buffer, 0, length, StandardCharsets.UTF_8);
+        String response = client.sendMessage("APPEND " + filename + " " + content);
+        if (response != null && response.startsWith("MOVED ")) {
+            // The file now belongs to another NameNode, keep appending there
+            String owner = response.substring("MOVED ".length()).trim();
+            client.sendMessage(".");
+            client.stopConnection();
+            client = new Client();
+            client.connect(PartitionTable.getHost(owner), PartitionTable.getPort(owner));
+            response = client.sendMessage("APPEND " + filename + " " + content);
+        }
+        if (!"COMPLETE".equals(response)) {
+            throw new IOException("Append to " + filename + " failed: " + response);
+        }
+        System.arraycopy(buffer, length, buffer, 0, count - length);
+        count -= length;
+    }
+
+    /**
+     * Finds the number of leading buffered bytes that form complete UTF-8 characters.
+     */
+    private int completeCharacters() {
+        int end = count;
+        int back = 0;
+        while (back < 3 && end - back - 1 >= 0 && (buffer[end - back - 1] & 0xC0) == 0x80) {
+            back++;
+        }
+        int lead = end - back - 1;
+        if (lead < 0) {
+            return end;
+        }
+        int expected = (buffer[lead] & 0xE0) == 0xC0 ? 2 : (buffer[lead] & 0xF0) == 0xE0 ? 3 : (buffer[lead] & 0xF8) == 0xF0 ? 4 : 1;
+        return expected > back + 1 ? lead : end;
+    }
+
+    /**
+     * Fails if the stream was closed or a background flush failed.
+     */
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (failure != null) {
+            IOException error = failure;
+            failure = null;
+            throw error;
+        }
+    }
+}
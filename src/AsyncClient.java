@@ -0,0 +1,507 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AsyncClient class is a non-blocking client for the Distributed File System.
+ * It keeps a few persistent connections to each NameNode and multiplexes many outstanding requests over them.
+ * Every request goes to the NameNode that owns its file according to a PartitionTable, and is resent once to the new
+ * owner if the NameNode answers that the file has moved.
+ * Every request is tagged with an "@req=<id>" header and its response is matched back by that id,
+ * so results are returned as CompletableFutures instead of blocking the calling thread. Requests beyond the limit on
+ * outstanding requests wait in a queue, still without blocking the caller, and a connection found lost is reopened
+ * the next time a request is sent on it.
+ *
+ * The number of connections, the limit on outstanding requests and the request timeout default to the
+ * "dfs.client.connections" (2), "dfs.client.maxInFlight" (256) and "dfs.client.timeoutMs" (30000) system properties.
+ * Every request carries the client id ("dfs.client.id", the process id by default), which the NameNode uses for fair
+ * scheduling, and the timeout, so the NameNode can drop requests this client has already given up on.
+ */
+public class AsyncClient implements Closeable {
+    private final PartitionTable partitionTable; // Owner of every file
+    private final int connectionCount; // Persistent connections per NameNode
+    private final Map<String, Connection[]> connections = new ConcurrentHashMap<>(); // Persistent connections by NameNode
+    private final AtomicInteger nextConnection = new AtomicInteger(); // Round-robin connection selector
+    private final AtomicLong nextRequestId = new AtomicLong(); // Source of request ids
+    private final Semaphore inFlight; // Permits for outstanding requests
+    private final Queue<QueuedRequest> waiting = new ConcurrentLinkedQueue<>(); // Requests waiting for a permit, in order
+    private final AtomicInteger starters = new AtomicInteger(); // Calls to startWaiting() not yet handled
+    private final long timeoutMillis; // How long a request may take, waiting for a permit included
+    private final String clientId; // Identity used by the NameNode for fair scheduling
+    private volatile boolean closed; // Whether close() was called
+
+    /**
+     * A request and the future of its response, until it is sent.
+     */
+    private static class QueuedRequest {
+        private final String spanName;
+        private final String filename;
+        private final String command;
+        private final CompletableFuture<String> response = new CompletableFuture<>();
+
+        private QueuedRequest(String spanName, String filename, String command) {
+            this.spanName = spanName;
+            this.filename = filename;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Constructor to connect to a NameNode using the limits from the system properties.
+     *
+     * @param ip The IP address of the NameNode.
+     * @param port The port number of the NameNode.
+     * @throws IOException If a connection cannot be established.
+     */
+    public AsyncClient(String ip, int port) throws IOException {
+        this(PartitionTable.parse(ip + ":" + port));
+    }
+
+    /**
+     * Constructor to connect to the NameNodes of a partition table using the limits from the system properties.
+     *
+     * @param partitionTable The NameNodes and the files they own, e.g. PartitionTable.fromProperty().
+     * @throws IOException If a connection cannot be established.
+     */
+    public AsyncClient(PartitionTable partitionTable) throws IOException {
+        this(partitionTable, System.getProperty("dfs.client.id", String.valueOf(ProcessHandle.current().pid())),
+                Integer.getInteger("dfs.client.connections", 2), Integer.getInteger("dfs.client.maxInFlight", 256),
+                Long.getLong("dfs.client.timeoutMs", 30000));
+    }
+
+    /**
+     * Constructor to connect to a NameNode with explicit limits.
+     *
+     * @param ip The IP address of the NameNode.
+     * @param port The port number of the NameNode.
+     * @param clientId The identity used by the NameNode for fair scheduling, must not contain spaces.
+     * @param connectionCount The number of persistent connections to open.
+     * @param maxInFlight The maximum number of outstanding requests.
+     * @param timeoutMillis The timeout for each request, waiting for a permit included, in milliseconds.
+     * @throws IOException If a connection cannot be established.
+     */
+    public AsyncClient(String ip, int port, String clientId, int connectionCount, int maxInFlight, long timeoutMillis)
+            throws IOException {
+        this(PartitionTable.parse(ip + ":" + port), clientId, connectionCount, maxInFlight, timeoutMillis);
+    }
+
+    /**
+     * Constructor to connect to the NameNodes of a partition table with explicit limits.
+     *
+     * @param partitionTable The NameNodes and the files they own.
+     * @param clientId The identity used by the NameNodes for fair scheduling, must not contain spaces.
+     * @param connectionCount The number of persistent connections to open to each NameNode.
+     * @param maxInFlight The maximum number of outstanding requests over all NameNodes.
+     * @param timeoutMillis The timeout for each request, waiting for a permit included, in milliseconds.
+     * @throws IOException If a connection cannot be established.
+     */
+    public AsyncClient(PartitionTable partitionTable, String clientId, int connectionCount, int maxInFlight,
+            long timeoutMillis) throws IOException {
+        this.partitionTable = partitionTable;
+        this.clientId = clientId;
+        this.connectionCount = Math.max(1, connectionCount);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutMillis = timeoutMillis;
+        for (String nameNode : partitionTable.getNameNodes()) {
+            getConnections(nameNode);
+        }
+    }
+
+    /**
+     * Reads a file.
+     *
+     * @param filename The name of the file.
+     * @return A future completed with the content of the file.
+     */
+    public CompletableFuture<String> read(String filename) {
+        return send("client.read", filename, "READ " + filename).thenCompose(AsyncClient::failOnError);
+    }
+
+    /**
+     * Appends content to a file.
+     *
+     * @param filename The name of the file.
+     * @param content The content to append, must not contain line breaks.
+     * @return A future completed once the NameNode has stored the content.
+     */
+    public CompletableFuture<Void> append(String filename, String content) {
+        return send("client.append", filename, "APPEND " + filename + " " + content).thenCompose(AsyncClient::failOnError)
+                .thenApply(response -> null);
+    }
+
+    /**
+     * Gets the number of blocks of a file, a metadata-only request answered by the NameNode without DataNode access.
+     *
+     * @param filename The name of the file.
+     * @return A future completed with the number of blocks, 0 if the file does not exist.
+     */
+    public CompletableFuture<Integer> getBlockCount(String filename) {
+        return send("client.blocks", filename, "BLOCKS " + filename).thenCompose(AsyncClient::failOnError)
+                .thenApply(Integer::parseInt);
+    }
+
+    /**
+     * Deletes a file. Its blocks are freed on the DataNodes in the background.
+     *
+     * @param filename The name of the file.
+     * @return A future completed with true if the file was deleted, false if it did not exist.
+     */
+    public CompletableFuture<Boolean> delete(String filename) {
+        return send("client.delete", filename, "DELETE " + filename).thenCompose(AsyncClient::toExists);
+    }
+
+    /**
+     * Truncates a file to its first blocks. The dropped blocks are freed on the DataNodes in the background.
+     *
+     * @param filename The name of the file.
+     * @param blockCount The number of blocks to keep.
+     * @return A future completed with true if the file was truncated, false if it did not exist.
+     */
+    public CompletableFuture<Boolean> truncate(String filename, int blockCount) {
+        return send("client.truncate", filename, "TRUNCATE " + filename + " " + blockCount).thenCompose(AsyncClient::toExists);
+    }
+
+    /**
+     * Fails a request whose response is an error.
+     *
+     * @param response The response.
+     * @return A future completed with the response, or failed with an IOException carrying the error.
+     */
+    private static CompletableFuture<String> failOnError(String response) {
+        return response.startsWith("ERROR") ? CompletableFuture.failedFuture(new IOException(response))
+                : CompletableFuture.completedFuture(response);
+    }
+
+    /**
+     * Turns the response to a DELETE or TRUNCATE request into whether the file existed, failing on other errors.
+     *
+     * @param response The response.
+     * @return A future completed with true on success, false if the file does not exist.
+     */
+    private static CompletableFuture<Boolean> toExists(String response) {
+        if ("COMPLETE".equals(response)) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if ("ERROR: No such file".equals(response)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return CompletableFuture.failedFuture(new IOException(response));
+    }
+
+    /**
+     * Reads many files concurrently.
+     *
+     * @param filenames The names of the files.
+     * @return A future completed with the content of every file, in the order the names were given.
+     */
+    public CompletableFuture<Map<String, String>> readAll(Collection<String> filenames) {
+        Map<String, CompletableFuture<String>> reads = new LinkedHashMap<>();
+        for (String filename : filenames) {
+            reads.put(filename, read(filename));
+        }
+        return CompletableFuture.allOf(reads.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<String, String> contents = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<String>> entry : reads.entrySet()) {
+                contents.put(entry.getKey(), entry.getValue().join());
+            }
+            return contents;
+        });
+    }
+
+    /**
+     * Appends to many files concurrently.
+     *
+     * @param contents The content to append, keyed by filename.
+     * @return A future completed once every append has been stored.
+     */
+    public CompletableFuture<Void> appendAll(Map<String, String> contents) {
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            appends.add(append(entry.getKey(), entry.getValue()));
+        }
+        return CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Queues a request for the owner of its file, it is sent as soon as a permit is available.
+     *
+     * @param spanName The name of the trace span for this request.
+     * @param filename The file the request is about.
+     * @param command The command to send.
+     * @return A future completed with the response, errors included, or exceptionally if no response arrived in time.
+     */
+    private CompletableFuture<String> send(String spanName, String filename, String command) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Client closed"));
+        }
+        QueuedRequest request = new QueuedRequest(spanName, filename, command);
+        waiting.add(request);
+        startWaiting();
+        return request.response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends waiting requests while permits are available. Only one thread sends at a time, a caller that finds another
+     * one at it leaves the work to it, so requests that complete right away do not recurse into this method.
+     */
+    private void startWaiting() {
+        if (starters.getAndIncrement() > 0) {
+            return;
+        }
+        int calls = 1;
+        do {
+            while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+                QueuedRequest request = waiting.poll();
+                if (request == null) {
+                    inFlight.release();
+                    break;
+                }
+                start(request);
+            }
+            calls = starters.addAndGet(-calls);
+        } while (calls != 0);
+    }
+
+    /**
+     * Sends a request that holds a permit to the owner of its file, following one redirect.
+     *
+     * @param request The request.
+     */
+    private void start(QueuedRequest request) {
+        if (request.response.isDone()) {
+            inFlight.release(); // Timed out while waiting
+            return;
+        }
+        Span span = Tracer.startTrace(request.spanName);
+        String tagged = span.inject(Headers.prepend("client", clientId,
+                Headers.prepend("timeout", Long.toString(timeoutMillis), request.command)));
+        dispatch(partitionTable.ownerOf(request.filename), tagged).thenCompose(response -> {
+            if (response.startsWith("MOVED ")) {
+                return dispatch(response.substring("MOVED ".length()).trim(), tagged);
+            }
+            return CompletableFuture.completedFuture(response);
+        }).whenComplete((response, error) -> {
+            inFlight.release();
+            span.end();
+            if (error != null) {
+                request.response.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            } else if (response.startsWith("MOVED ")) {
+                request.response.completeExceptionally(new IOException("Too many redirects: " + response));
+            } else {
+                request.response.complete(response);
+            }
+            startWaiting();
+        });
+    }
+
+    /**
+     * Sends a request on the next connection to a NameNode.
+     *
+     * @param nameNode The NameNode address as "host:port".
+     * @param command The command to send, with all headers but the request id.
+     * @return A future completed with the response, or exceptionally if the connection fails or times out.
+     */
+    private CompletableFuture<String> dispatch(String nameNode, String command) {
+        Connection[] pool;
+        try {
+            pool = getConnections(nameNode);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Connection connection;
+        try {
+            connection = getConnection(nameNode, pool, Math.floorMod(nextConnection.getAndIncrement(), pool.length));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        return connection.send(requestId, command).orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> connection.forget(requestId));
+    }
+
+    /**
+     * Gets the connections to a NameNode, opening them on first use.
+     *
+     * @param nameNode The NameNode address as "host:port".
+     * @return The connections.
+     * @throws IOException If a connection cannot be established.
+     */
+    private Connection[] getConnections(String nameNode) throws IOException {
+        Connection[] pool = connections.get(nameNode);
+        if (pool != null) {
+            return pool;
+        }
+        synchronized (connections) {
+            pool = connections.get(nameNode);
+            if (pool == null) {
+                pool = new Connection[connectionCount];
+                for (int i = 0; i < pool.length; i++) {
+                    pool[i] = new Connection(PartitionTable.getHost(nameNode), PartitionTable.getPort(nameNode));
+                }
+                connections.put(nameNode, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Gets a connection of a pool, reopening it if it was lost.
+     *
+     * @param nameNode The NameNode address as "host:port".
+     * @param pool The connections to the NameNode.
+     * @param index The connection to get.
+     * @return The open connection.
+     * @throws IOException If the connection was lost and cannot be reopened.
+     */
+    private Connection getConnection(String nameNode, Connection[] pool, int index) throws IOException {
+        Connection connection = pool[index];
+        if (!connection.isLost()) {
+            return connection;
+        }
+        synchronized (pool) {
+            connection = pool[index];
+            if (connection.isLost()) {
+                if (closed) {
+                    throw new IOException("Client closed");
+                }
+                connection = new Connection(PartitionTable.getHost(nameNode), PartitionTable.getPort(nameNode));
+                pool[index] = connection;
+                Log.info("Reopened connection to NameNode: {}", nameNode);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Closes all connections, failing any outstanding and waiting requests.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Connection[] pool : connections.values()) {
+            synchronized (pool) {
+                for (Connection connection : pool) {
+                    connection.close();
+                }
+            }
+        }
+        QueuedRequest request;
+        while ((request = waiting.poll()) != null) {
+            request.response.completeExceptionally(new IOException("Client closed"));
+        }
+    }
+
+    /**
+     * Connection class is one persistent connection with a reader thread that completes responses by request id.
+     */
+    private static class Connection extends Thread {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        private final Map<Long, CompletableFuture<String>> outstanding = new ConcurrentHashMap<>();
+        private volatile boolean lost; // Whether the reader has stopped, no response will arrive any more
+
+        public Connection(String ip, int port) throws IOException {
+            super("async-client-" + ip + ":" + port);
+            socket = new Socket(ip, port);
+            out = new PrintWriter(socket.getOutputStream(), false);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            setDaemon(true);
+            start();
+        }
+
+        /**
+         * Registers and writes a request.
+         *
+         * @param requestId The request id.
+         * @param command The command to send.
+         * @return A future completed by the reader thread.
+         */
+        public CompletableFuture<String> send(long requestId, String command) {
+            CompletableFuture<String> response = new CompletableFuture<>();
+            outstanding.put(requestId, response);
+            synchronized (out) {
+                out.println(Headers.prepend("req", Long.toString(requestId), command));
+                out.flush();
+                if (out.checkError() || lost) {
+                    response.completeExceptionally(new IOException("Connection to NameNode lost"));
+                }
+            }
+            return response;
+        }
+
+        /**
+         * Checks whether the connection was lost, so that it has to be replaced.
+         *
+         * @return True once the reader has stopped.
+         */
+        public boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * Stops tracking a finished or timed out request.
+         *
+         * @param requestId The request id.
+         */
+        public void forget(long requestId) {
+            outstanding.remove(requestId);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    Headers headers = Headers.parse(line);
+                    String requestId = headers.get("req");
+                    if (requestId == null) {
+                        Log.warn("Ignoring response without request id: {}", line);
+                        continue;
+                    }
+                    CompletableFuture<String> response = outstanding.remove(Long.parseLong(requestId));
+                    if (response == null) {
+                        continue; // Already timed out
+                    }
+                    response.complete(headers.getBody()); // Errors are the callers' to interpret
+                }
+            } catch (IOException e) {
+                Log.debug("Async client connection closed: {}", e.getMessage());
+            }
+            lost = true; // Requests registered from now on fail in send(), the ones before are failed here
+            IOException closed = new IOException("Connection to NameNode closed");
+            for (CompletableFuture<String> response : outstanding.values()) {
+                response.completeExceptionally(closed);
+            }
+        }
+
+        /**
+         * Closes the socket, which also ends the reader thread.
+         */
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("Error while closing async client connection", e);
+            }
+        }
+    }
+}
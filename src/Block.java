@@ -1,3 +1,4 @@
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -5,6 +6,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * Block class representing a block of data in the distributed file system.
  * It contains information about the file where the block's data is stored
  * and provides mechanisms to handle concurrent read and write operations using locks.
+ * It also counts how often the block is read, which decides whether the block is kept in the memory tier.
  * 
  * Author: Umar Mohammad
  */
@@ -13,6 +15,7 @@ public class Block {
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock readLock = readWriteLock.readLock(); // Reader side of readWriteLock
     private final Lock writeLock = readWriteLock.writeLock(); // Writer side of readWriteLock
+    private final AtomicInteger accessCount = new AtomicInteger(); // Recent reads, halved periodically so old reads fade
 
     /**
      * Constructor to create a block with the specified filename.
@@ -49,4 +52,38 @@ public class Block {
     public Lock getWriteLock() {
         return this.writeLock;
     }
+
+    /**
+     * Checks whether the current thread holds the write lock of this block.
+     * 
+     * @return True if the write lock is held by the current thread.
+     */
+    public boolean isWriteLockedByCurrentThread() {
+        return this.readWriteLock.isWriteLockedByCurrentThread();
+    }
+
+    /**
+     * Records a read of this block.
+     * 
+     * @return The number of recent reads including this one.
+     */
+    public int recordAccess() {
+        return accessCount.incrementAndGet();
+    }
+
+    /**
+     * Gets the number of recent reads of this block.
+     * 
+     * @return The recent read count.
+     */
+    public int getAccessCount() {
+        return accessCount.get();
+    }
+
+    /**
+     * Halves the recent read count, so a block that stops being read becomes cold over time.
+     */
+    public void decayAccessCount() {
+        accessCount.updateAndGet(count -> count / 2);
+    }
 }
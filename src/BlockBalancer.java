@@ -0,0 +1,282 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * BlockBalancer class moves blocks from the most used DataNode to the least used one in the background.
+ * Appends fill one DataNode before moving on to the next, so without balancing a single DataNode ends up holding,
+ * and serving the reads of, most blocks.
+ *
+ * A block is moved by copying it to the target DataNode and then swapping its entry in the file map under the map lock,
+ * only if the entry still refers to the copied block of the same generation of the file. The source block is handed to
+ * the BlockReclaimer, so reads that resolved the old location before the swap keep working during its grace period.
+ * A block whose move fails is skipped in favour of the other blocks of its DataNode until none of them is left.
+ * Copies are throttled to "dfs.balancer.bandwidthBytesPerSec" (1048576) so balancing does not compete with clients.
+ * The DataNodes are checked every "dfs.balancer.intervalMs" (10000) milliseconds and are considered balanced once their
+ * utilization differs by at most "dfs.balancer.threshold" (10) percentage points.
+ *
+ * NameNodes of a federation share the DataNodes, and balancers on several of them would each judge balance from usage
+ * that the others are changing at the same time. Only the balancer of the first NameNode of the partition table moves
+ * blocks, and since it only knows its own files it can only move their blocks. The others stay idle until a new table
+ * puts their NameNode first.
+ */
+class BlockBalancer extends Thread {
+    private final CompactBlockMap fileToBlockMap; // File map of the NameNode
+    private final Object mapLock; // Lock guarding the file map
+    private final Metrics metrics; // Metrics of the NameNode
+    private final long bandwidthBytesPerSec = Long.getLong("dfs.balancer.bandwidthBytesPerSec", 1048576);
+    private final long intervalMillis = Long.getLong("dfs.balancer.intervalMs", 10000);
+    private final double threshold = Integer.getInteger("dfs.balancer.threshold", 10) / 100.0;
+    private final BlockReclaimer reclaimer; // Frees moved source blocks once readers had time to finish
+    private final BooleanSupplier leader; // Whether this NameNode is the one of the federation that balances
+    private final Set<Long> failedMoves = new HashSet<>(); // Blocks whose move failed, tried again once no other is left
+    private volatile boolean running = true;
+
+    /**
+     * A block chosen for a move and where it is referenced.
+     */
+    private static class Candidate {
+        private final String filename;
+        private final long generation;
+        private final int index;
+        private final long block;
+
+        private Candidate(String filename, long generation, int index, long block) {
+            this.filename = filename;
+            this.generation = generation;
+            this.index = index;
+            this.block = block;
+        }
+    }
+
+    /**
+     * Constructor to create the balancer for a NameNode.
+     *
+     * @param fileToBlockMap The file map of the NameNode.
+     * @param mapLock The lock guarding the file map.
+     * @param reclaimer The reclaimer that frees blocks no longer referenced.
+     * @param leader Whether this NameNode is the one of the federation that balances, checked every round.
+     * @param metrics The metrics registry to record into.
+     */
+    public BlockBalancer(CompactBlockMap fileToBlockMap, Object mapLock, BlockReclaimer reclaimer, BooleanSupplier leader,
+            Metrics metrics) {
+        super("block-balancer");
+        this.fileToBlockMap = fileToBlockMap;
+        this.mapLock = mapLock;
+        this.reclaimer = reclaimer;
+        this.leader = leader;
+        this.metrics = metrics;
+        setDaemon(true);
+    }
+
+    /**
+     * Stops balancing after the current move.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Log.info("Block balancer started, bandwidth limit: {} bytes/s", bandwidthBytesPerSec);
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+                while (running && leader.getAsBoolean() && balanceOnce()) {
+                    // Keep moving blocks until the DataNodes are balanced
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error("Block balancer round failed", e);
+            }
+        }
+    }
+
+    /**
+     * Moves one block from the most used DataNode to the least used one if they are not balanced.
+     *
+     * @return True if a block was moved, false if there was nothing to do.
+     * @throws InterruptedException If interrupted while throttling.
+     */
+    boolean balanceOnce() throws InterruptedException {
+        String source = null;
+        String target = null;
+        double maxUsage = -1;
+        double minUsage = 2;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            String dataNodeId = "D" + i;
+            double usage = getUtilization(dataNodeId);
+            if (usage < 0) {
+                continue; // Unreachable DataNodes take no part in balancing
+            }
+            if (usage > maxUsage) {
+                maxUsage = usage;
+                source = dataNodeId;
+            }
+            if (usage < minUsage && usage < 1) {
+                minUsage = usage;
+                target = dataNodeId;
+            }
+        }
+        if (source == null || target == null || source.equals(target) || maxUsage - minUsage <= threshold) {
+            return false;
+        }
+        Candidate candidate = findBlock(source);
+        if (candidate == null && !failedMoves.isEmpty()) {
+            failedMoves.clear(); // Every other block was tried, start over with the ones that failed
+            candidate = findBlock(source);
+        }
+        if (candidate == null) {
+            return false; // Everything on the source is unreferenced, nothing to move
+        }
+        long startTime = System.nanoTime();
+        long bytes = move(candidate, target);
+        if (bytes < 0) {
+            failedMoves.add(candidate.block);
+            metrics.increment("balancer.failures");
+            return false;
+        }
+        failedMoves.remove(candidate.block);
+        metrics.recordLatency("balancer.move", System.nanoTime() - startTime);
+        metrics.add("balancer.bytes", bytes);
+        throttle(bytes, System.nanoTime() - startTime);
+        return true;
+    }
+
+    /**
+     * Gets the fraction of blocks in use on a DataNode.
+     *
+     * @param dataNodeId The DataNode identifier.
+     * @return The utilization between 0 and 1 not counting blocks waiting to be freed, or -1 if the DataNode could not be queried.
+     */
+    private double getUtilization(String dataNodeId) {
+        try {
+            String[] usage = call(dataNodeId, "Usage").split(" ");
+            int used = Integer.parseInt(usage[0]) - reclaimer.getPending(dataNodeId);
+            return (double) used / Integer.parseInt(usage[1]);
+        } catch (IOException | RuntimeException e) {
+            Log.debug("Unable to get the utilization of {}: {}", dataNodeId, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Finds a block stored on a DataNode whose move has not failed, taking files in map order.
+     *
+     * @param dataNodeId The DataNode identifier.
+     * @return The block and where it is referenced, or null if no file has such a block there.
+     */
+    private Candidate findBlock(String dataNodeId) {
+        Candidate[] found = new Candidate[1];
+        synchronized (mapLock) {
+            int node = fileToBlockMap.intern(dataNodeId);
+            fileToBlockMap.forEach((filename, generation, blocks, count) -> {
+                for (int i = 0; i < count; i++) {
+                    if (CompactBlockMap.getDataNodeIndex(blocks[i]) == node && !failedMoves.contains(blocks[i])) {
+                        found[0] = new Candidate(filename, generation, i, blocks[i]);
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+        return found[0];
+    }
+
+    /**
+     * Copies a block to the target DataNode and points the file map at the copy.
+     *
+     * @param candidate The block to move.
+     * @param target The DataNode identifier to move it to.
+     * @return The size of the block in bytes, or -1 if the move did not happen.
+     */
+    private long move(Candidate candidate, String target) {
+        String sourceId = fileToBlockMap.getDataNodeId(candidate.block);
+        int sourceBlock = CompactBlockMap.getBlockNumber(candidate.block);
+        int copyId = -1;
+        try {
+            String content = call(sourceId, "Read " + sourceBlock);
+            if (content == null) {
+                content = ""; // An empty block is sent as nothing at all
+            }
+            copyId = Integer.parseInt(call(target, "Alloc"));
+            if (copyId == -1) {
+                return -1;
+            }
+            if (!"COMPLETE".equals(call(target, "Write " + copyId + " " + content))) {
+                free(target, copyId);
+                return -1;
+            }
+            boolean swapped;
+            synchronized (mapLock) {
+                // The block may have been rewritten, moved or dropped while it was being copied
+                swapped = fileToBlockMap.replace(candidate.filename, candidate.generation, candidate.index, candidate.block,
+                        fileToBlockMap.pack(target, copyId));
+            }
+            if (!swapped) {
+                free(target, copyId);
+                return -1;
+            }
+            reclaimer.reclaim(new long[] {candidate.block});
+            metrics.increment("balancer.moves");
+            Log.debug("Moved block {} to {}", candidate.filename + "[" + candidate.index + "]", sourceId + " -> " + target);
+            return content.length();
+        } catch (IOException | NumberFormatException e) {
+            Log.warn("Balancer failed to move a block of {}", candidate.filename + ": " + e.getMessage());
+            if (copyId >= 0) {
+                free(target, copyId);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Sleeps long enough for the copy rate to stay within the bandwidth limit.
+     *
+     * @param bytes The number of bytes copied.
+     * @param elapsedNanos How long the copy took.
+     * @throws InterruptedException If interrupted while sleeping.
+     */
+    private void throttle(long bytes, long elapsedNanos) throws InterruptedException {
+        long budgetNanos = bytes * 1_000_000_000L / Math.max(1, bandwidthBytesPerSec);
+        long sleepNanos = budgetNanos - elapsedNanos;
+        if (sleepNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        }
+    }
+
+    /**
+     * Frees a copy that did not replace its source, through the reclaimer.
+     *
+     * @param dataNodeId The DataNode identifier.
+     * @param blockId The block ID.
+     */
+    private void free(String dataNodeId, int blockId) {
+        reclaimer.reclaim(new long[] {fileToBlockMap.pack(dataNodeId, blockId)});
+    }
+
+    /**
+     * Sends one command to a DataNode on its own connection.
+     *
+     * @param dataNodeId The DataNode identifier.
+     * @param command The command.
+     * @return The response line, or null if the DataNode sent none.
+     * @throws IOException If the DataNode cannot be reached.
+     */
+    private String call(String dataNodeId, String command) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", NameNode.getDataNodePort(dataNodeId));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println(command);
+            return in.readLine();
+        }
+    }
+}
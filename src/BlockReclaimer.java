@@ -0,0 +1,206 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BlockReclaimer class returns blocks that are no longer referenced by the NameNode to their DataNodes in the background.
+ * Deleting or truncating a file, or moving a block, only hands the dropped blocks over in constant time. The reclaimer
+ * waits a grace period of "dfs.reclaim.delayMs" (5000) milliseconds so that reads which resolved a block before it was
+ * dropped can still finish, then frees the blocks with one "FREE id1 id2 ..." command per DataNode and batch of up to
+ * "dfs.reclaim.batchSize" (256) blocks. Batches whose DataNode cannot be reached are retried after another grace period.
+ */
+class BlockReclaimer extends Thread {
+    private final CompactBlockMap fileToBlockMap; // File map of the NameNode, used to resolve packed blocks
+    private final Metrics metrics; // Metrics of the NameNode
+    private final long delayNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.reclaim.delayMs", 5000));
+    private final int batchSize = Integer.getInteger("dfs.reclaim.batchSize", 256);
+    private final LinkedBlockingQueue<Dropped> intake = new LinkedBlockingQueue<>(); // Handed over, not counted yet
+    private final ArrayDeque<Dropped> waiting = new ArrayDeque<>(); // Counted, in due order, used by this thread only
+    private final Map<String, Integer> pendingFrees = new ConcurrentHashMap<>(); // Counted blocks not freed yet, by DataNode
+    private final AtomicLong pendingBlocks = new AtomicLong(); // Counted blocks not freed yet
+    private volatile boolean running = true;
+
+    /**
+     * Blocks dropped together and when they may be freed.
+     */
+    private static class Dropped {
+        private final long[] blocks; // Packed blocks, NO_BLOCK entries at the end are ignored
+        private final long dueNanos;
+
+        private Dropped(long[] blocks, long dueNanos) {
+            this.blocks = blocks;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    /**
+     * Constructor to create the reclaimer for a NameNode.
+     *
+     * @param fileToBlockMap The file map of the NameNode.
+     * @param metrics The metrics registry to record into.
+     */
+    public BlockReclaimer(CompactBlockMap fileToBlockMap, Metrics metrics) {
+        super("block-reclaimer");
+        this.fileToBlockMap = fileToBlockMap;
+        this.metrics = metrics;
+        setDaemon(true);
+        metrics.registerGauge("reclaim.pending", pendingBlocks::get);
+    }
+
+    /**
+     * Queues blocks that are no longer referenced, taking over the array. Returns immediately.
+     *
+     * @param blocks The packed blocks, NO_BLOCK entries at the end are ignored.
+     */
+    public void reclaim(long[] blocks) {
+        intake.add(new Dropped(blocks, System.nanoTime() + delayNanos));
+    }
+
+    /**
+     * Gets the number of blocks of a DataNode that are waiting to be freed.
+     *
+     * @param dataNodeId The DataNode identifier.
+     * @return The number of blocks.
+     */
+    public int getPending(String dataNodeId) {
+        return pendingFrees.getOrDefault(dataNodeId, 0);
+    }
+
+    /**
+     * Stops reclaiming, blocks not freed yet stay allocated on their DataNodes.
+     */
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Dropped next = waiting.peek();
+                long waitNanos = next == null ? Long.MAX_VALUE : next.dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Dropped dropped = intake.poll(waitNanos, TimeUnit.NANOSECONDS);
+                    if (dropped != null) {
+                        count(dropped);
+                    }
+                    continue;
+                }
+                freeDue();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                Log.error("Block reclaimer round failed", e);
+            }
+        }
+    }
+
+    /**
+     * Counts newly dropped blocks as pending on their DataNodes and schedules them.
+     */
+    private void count(Dropped dropped) {
+        int length = CompactBlockMap.length(dropped.blocks);
+        for (int i = 0; i < length; i++) {
+            pendingFrees.merge(fileToBlockMap.getDataNodeId(dropped.blocks[i]), 1, Integer::sum);
+        }
+        pendingBlocks.addAndGet(length);
+        waiting.add(dropped);
+    }
+
+    /**
+     * Frees every block whose grace period is over, batching them per DataNode.
+     */
+    private void freeDue() {
+        int[][] batches = new int[0][]; // Block numbers of the current batch, by DataNode index
+        int[] counts = new int[0];
+        long now = System.nanoTime();
+        while (!waiting.isEmpty() && waiting.peek().dueNanos <= now) {
+            Dropped dropped = waiting.poll();
+            int length = CompactBlockMap.length(dropped.blocks);
+            for (int i = 0; i < length; i++) {
+                int node = CompactBlockMap.getDataNodeIndex(dropped.blocks[i]);
+                if (node >= batches.length) {
+                    batches = Arrays.copyOf(batches, node + 1);
+                    counts = Arrays.copyOf(counts, node + 1);
+                }
+                if (batches[node] == null) {
+                    batches[node] = new int[batchSize];
+                }
+                batches[node][counts[node]++] = CompactBlockMap.getBlockNumber(dropped.blocks[i]);
+                if (counts[node] == batchSize) {
+                    free(dropped.blocks[i], batches[node], counts[node]);
+                    counts[node] = 0;
+                }
+            }
+        }
+        for (int node = 0; node < batches.length; node++) {
+            if (counts[node] > 0) {
+                free((long) node << 32, batches[node], counts[node]);
+            }
+        }
+    }
+
+    /**
+     * Frees a batch of blocks on one DataNode, scheduling them again if the DataNode cannot be reached.
+     *
+     * @param anyBlock Any packed block of the DataNode.
+     * @param blockNumbers The block numbers.
+     * @param count The number of blocks in the batch.
+     */
+    private void free(long anyBlock, int[] blockNumbers, int count) {
+        String dataNodeId = fileToBlockMap.getDataNodeId(anyBlock);
+        StringBuilder command = new StringBuilder("Free");
+        for (int i = 0; i < count; i++) {
+            command.append(' ').append(blockNumbers[i]);
+        }
+        long startTime = System.nanoTime();
+        String response;
+        try {
+            response = call(fileToBlockMap.getDataNodePort(anyBlock), command.toString());
+        } catch (IOException e) {
+            Log.warn("Unable to free blocks, will retry: {}", dataNodeId + " (" + e.getMessage() + ")");
+            metrics.increment("reclaim.failures");
+            long[] retry = new long[count];
+            for (int i = 0; i < count; i++) {
+                retry[i] = fileToBlockMap.pack(dataNodeId, blockNumbers[i]);
+            }
+            waiting.add(new Dropped(retry, System.nanoTime() + delayNanos));
+            return;
+        }
+        if (!"COMPLETE".equals(response)) {
+            Log.warn("Unable to free some blocks: {}", dataNodeId + " (" + response + ")");
+        }
+        pendingFrees.merge(dataNodeId, -count, Integer::sum);
+        pendingBlocks.addAndGet(-count);
+        metrics.increment("reclaim.batches");
+        metrics.add("reclaim.blocks", count);
+        metrics.recordLatency("reclaim.batch", System.nanoTime() - startTime);
+    }
+
+    /**
+     * Sends one command to a DataNode on its own connection.
+     *
+     * @param port The port of the DataNode.
+     * @param command The command.
+     * @return The response line, or null if the DataNode sent none.
+     * @throws IOException If the DataNode cannot be reached.
+     */
+    private static String call(int port, String command) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            out.println(command);
+            return in.readLine();
+        }
+    }
+}
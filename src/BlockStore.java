@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * BlockStore interface is the storage engine of a DataNode, holding the contents of its blocks.
+ * The DataNode serializes access to each block with the block's read/write lock, so an engine only has to be safe
+ * for concurrent calls on different blocks. Writes become durable once sync() returns.
+ */
+interface BlockStore {
+
+    /**
+     * Gets the blocks found in the store when it was opened.
+     *
+     * @return The IDs of the stored blocks.
+     */
+    Set<Integer> getBlockIds();
+
+    /**
+     * Creates an empty block, discarding any previous contents.
+     *
+     * @param blockId The block ID.
+     * @throws IOException If the block cannot be created.
+     */
+    void create(int blockId) throws IOException;
+
+    /**
+     * Reads the contents of a block.
+     *
+     * @param blockId The block ID.
+     * @return The contents, or null if the block does not exist.
+     * @throws IOException If the block cannot be read.
+     */
+    byte[] read(int blockId) throws IOException;
+
+    /**
+     * Replaces the contents of a block. The new contents may not be durable until sync() is called.
+     *
+     * @param blockId The block ID.
+     * @param data The new contents.
+     * @throws IOException If the block cannot be written.
+     */
+    void write(int blockId, byte[] data) throws IOException;
+
+    /**
+     * Forces every write made so far to the storage device.
+     *
+     * @throws IOException If the writes cannot be forced.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Forces the writes made so far to one block to the storage device. Stores with a shared sync may force the writes
+     * to other blocks along with them, at no extra cost.
+     *
+     * @param blockId The block ID.
+     * @throws IOException If the writes cannot be forced.
+     */
+    void sync(int blockId) throws IOException;
+
+    /**
+     * Checks whether one sync() forces all the writes made since the previous one at a fixed cost, however many
+     * blocks they touched, which is what makes sharing a sync between the writes of a group commit worthwhile.
+     *
+     * @return True if a sync costs the same for one written block as for many.
+     */
+    boolean hasSharedSync();
+
+    /**
+     * Deletes a block and its contents.
+     *
+     * @param blockId The block ID.
+     * @throws IOException If the block cannot be deleted.
+     */
+    void delete(int blockId) throws IOException;
+
+    /**
+     * Describes where a block is stored, for log messages.
+     *
+     * @param blockId The block ID.
+     * @return The description.
+     */
+    String describe(int blockId);
+}
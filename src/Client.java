@@ -9,6 +9,8 @@ import java.util.Scanner;
 /**
  * Client class to interact with the Distributed File System.
  * It handles the network communication with the server to perform read and write operations on files.
+ * Requests about a file go to the NameNode that owns it according to the partition table in "dfs.namenodes",
+ * and are resent once if that NameNode answers that the file has moved.
  * 
  * Author: Umar Mohammad
  */
@@ -16,8 +18,10 @@ public class Client {
     private Socket clientSocket;
     private PrintWriter out;
     private BufferedReader in;
+    private static final PartitionTable partitionTable = PartitionTable.fromProperty(); // Owner of every file
 
     public static void main(String[] args) {
+        Tracer.setService("client");
         Scanner scanner = new Scanner(System.in);
         System.out.print("::");
         String input;
@@ -28,8 +32,14 @@ public class Client {
                 handleReadCommand(tokens[1]);
             } else if (tokens[0].equalsIgnoreCase("append") && tokens.length > 2) {
                 handleAppendCommand(tokens[1], input.split(" ", 3)[2]);
+            } else if (tokens[0].equalsIgnoreCase("delete") && tokens.length == 2) {
+                handleDeleteCommand(tokens[1]);
+            } else if (tokens[0].equalsIgnoreCase("truncate") && tokens.length == 3) {
+                handleTruncateCommand(tokens[1], tokens[2]);
             } else if (tokens[0].equalsIgnoreCase("shutdown")) {
                 handleShutdownCommand();
+            } else if (tokens[0].equalsIgnoreCase("stats")) {
+                handleStatsCommand();
             } else {
                 System.out.println("Invalid Input");
             }
@@ -39,30 +49,115 @@ public class Client {
     }
 
     private static void handleReadCommand(String filename) {
-        Client client = new Client();
-        client.startConnection("127.0.0.1", 5558);
-        String response = client.sendMessage("READ " + filename);
+        Span span = Tracer.startTrace("client.read");
+        String response = sendToOwner(filename, "READ " + filename, span);
+        span.end();
         System.out.println("Response from server: " + response);
-        client.sendMessage(".");
-        client.stopConnection();
     }
 
     private static void handleAppendCommand(String filename, String content) {
-        Client client = new Client();
-        client.startConnection("127.0.0.1", 5558);
-        String response = client.sendMessage("APPEND " + filename + " " + content);
+        Span span = Tracer.startTrace("client.append");
+        String response = sendToOwner(filename, "APPEND " + filename + " " + content, span);
+        span.end();
+        System.out.println("Response from server: " + response);
+    }
+
+    private static void handleDeleteCommand(String filename) {
+        Span span = Tracer.startTrace("client.delete");
+        String response = sendToOwner(filename, "DELETE " + filename, span);
+        span.end();
+        System.out.println("Response from server: " + response);
+    }
+
+    private static void handleTruncateCommand(String filename, String blockCount) {
+        Span span = Tracer.startTrace("client.truncate");
+        String response = sendToOwner(filename, "TRUNCATE " + filename + " " + blockCount, span);
+        span.end();
         System.out.println("Response from server: " + response);
-        client.sendMessage(".");
-        client.stopConnection();
     }
 
     private static void handleShutdownCommand() {
+        for (String nameNode : partitionTable.getNameNodes()) {
+            String response = send(nameNode, "shutdown", Span.NOOP);
+            System.out.println("Response from " + nameNode + ": " + response);
+        }
+    }
+
+    private static void handleStatsCommand() {
+        for (String nameNode : partitionTable.getNameNodes()) {
+            String response = send(nameNode, "STATS", Span.NOOP);
+            System.out.println("Response from " + nameNode + ": " + response);
+        }
+    }
+
+    /**
+     * Sends a request about a file to the NameNode that owns it, following one redirect if the file has moved.
+     * 
+     * @param filename The name of the file.
+     * @param request The request.
+     * @param span The trace span of the request.
+     * @return The response.
+     */
+    private static String sendToOwner(String filename, String request, Span span) {
+        String response = send(partitionTable.ownerOf(filename), request, span);
+        if (response != null && response.startsWith("MOVED ")) {
+            response = send(response.substring("MOVED ".length()).trim(), request, span);
+        }
+        return response;
+    }
+
+    /**
+     * Sends one request to a NameNode on its own connection.
+     * 
+     * @param nameNode The NameNode address as "host:port".
+     * @param request The request.
+     * @param span The trace span of the request.
+     * @return The response.
+     */
+    private static String send(String nameNode, String request, Span span) {
         Client client = new Client();
-        client.startConnection("127.0.0.1", 5558);
-        String response = client.sendMessage("shutdown");
-        System.out.println("Response from server: " + response);
+        Span connectSpan = span.child("client.connect");
+        client.startConnection(PartitionTable.getHost(nameNode), PartitionTable.getPort(nameNode));
+        connectSpan.end();
+        String response = client.sendMessage(span.inject(request));
         client.sendMessage(".");
         client.stopConnection();
+        return response;
+    }
+
+    /**
+     * Gets the NameNode that owns a file according to the partition table in "dfs.namenodes".
+     * 
+     * @param filename The name of the file.
+     * @return The NameNode address as "host:port".
+     */
+    public static String getOwner(String filename) {
+        return partitionTable.ownerOf(filename);
+    }
+
+    /**
+     * Opens a buffered stream that appends to the specified file in block-sized shipments.
+     * 
+     * @param filename The file to append to.
+     * @return The append stream, which must be closed to ship the remaining bytes.
+     * @throws IOException If the NameNode that owns the file cannot be reached.
+     */
+    public static AppendOutputStream openAppendStream(String filename) throws IOException {
+        String owner = getOwner(filename);
+        return new AppendOutputStream(PartitionTable.getHost(owner), PartitionTable.getPort(owner), filename);
+    }
+
+    /**
+     * Opens a stream that reads the specified file block by block.
+     * 
+     * @param filename The file to read.
+     * @param readAhead Whether to prefetch the next block while the current one is consumed.
+     * @return The read stream.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static ReadAheadInputStream openReadStream(String filename, boolean readAhead) throws IOException {
+        String owner = getOwner(filename);
+        return new ReadAheadInputStream(PartitionTable.getHost(owner), PartitionTable.getPort(owner), filename, readAhead);
     }
 
     /**
@@ -73,15 +168,26 @@ public class Client {
      */
     public void startConnection(String ip, int port) {
         try {
-            clientSocket = new Socket(ip, port);
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            connect(ip, port);
         } catch (IOException e) {
             System.out.println("Error starting connection");
             e.printStackTrace();
         }
     }
 
+    /**
+     * Starts a connection to the server with the given IP and port, reporting a failure to the caller.
+     * 
+     * @param ip The IP address of the server.
+     * @param port The port number of the server.
+     * @throws IOException If the server cannot be reached.
+     */
+    void connect(String ip, int port) throws IOException {
+        clientSocket = new Socket(ip, port);
+        out = new PrintWriter(clientSocket.getOutputStream(), true);
+        in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+    }
+
     /**
      * Sends a message to the server and returns the response.
      * 
@@ -0,0 +1,455 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CompactBlockMap class holds the block lists of all files of a NameNode in primitive arrays.
+ * A block is packed into a single long, the interned index of its DataNode in the high 32 bits and its block number
+ * in the low 32 bits, and the blocks of a file are kept in one long array. Files live in an open addressing table of
+ * parallel arrays keyed by the filename encoded as UTF-8 bytes, so there is no map entry, String, list or Pair object
+ * per file or block. A block costs 8 bytes instead of the 70 to 80 bytes of a Pair with its own DataNode ID String in
+ * an ArrayList, and resolving a block to a DataNode port and block number allocates nothing.
+ *
+ * Every file also has a generation, taken from a counter whenever the file is created or truncated, so a caller that
+ * looked up a block can tell whether the file was dropped, recreated or cut short in the meantime.
+ *
+ * Unused room at the end of a block array holds NO_BLOCK, which lets remove() hand the array of a deleted file over
+ * without copying it.
+ *
+ * Interning DataNode IDs and resolving packed blocks are thread safe. The file table is not, callers hold the lock of
+ * the NameNode file map.
+ */
+class CompactBlockMap {
+    static final long NO_BLOCK = -1L; // Returned when a file has no block at a position
+    private static final int INITIAL_CAPACITY = 16; // Table slots, always a power of two
+
+    private final Map<String, Integer> dataNodeIndexes = new ConcurrentHashMap<>(); // Index of every interned DataNode ID
+    private volatile String[] dataNodeIds = new String[0]; // Interned DataNode IDs by index, copied on write
+    private volatile int[] dataNodePorts = new int[0]; // Port of every interned DataNode by index, copied on write
+    private byte[][] names = new byte[INITIAL_CAPACITY][]; // UTF-8 filename of every slot, null if free
+    private int[] hashes = new int[INITIAL_CAPACITY]; // String hash code of the filename of every slot
+    private long[][] blocks = new long[INITIAL_CAPACITY][]; // Packed blocks of every slot, spare room holds NO_BLOCK
+    private int[] blockCounts = new int[INITIAL_CAPACITY]; // Blocks in use in every slot
+    private long[] generations = new long[INITIAL_CAPACITY]; // Generation of the file of every slot
+    private long nextGeneration = 1; // Generation of the next file created
+    private int size; // Number of files
+    private long blockCount; // Number of blocks of all files
+
+    /**
+     * Packs a DataNode and block number into a block reference, interning the DataNode ID.
+     *
+     * @param dataNodeId The DataNode identifier, e.g. "D1".
+     * @param blockNumber The block number within the DataNode.
+     * @return The packed block.
+     */
+    public long pack(String dataNodeId, int blockNumber) {
+        return (long) intern(dataNodeId) << 32 | (blockNumber & 0xffffffffL);
+    }
+
+    /**
+     * Gets the small index that stands for a DataNode in packed blocks, assigning one on first use.
+     *
+     * @param dataNodeId The DataNode identifier, e.g. "D1".
+     * @return The DataNode index.
+     */
+    public int intern(String dataNodeId) {
+        Integer index = dataNodeIndexes.get(dataNodeId);
+        return index != null ? index : addDataNode(dataNodeId);
+    }
+
+    /**
+     * Assigns the next index to a DataNode, publishing its ID and port before the index.
+     */
+    private synchronized int addDataNode(String dataNodeId) {
+        Integer index = dataNodeIndexes.get(dataNodeId);
+        if (index == null) {
+            index = dataNodeIds.length;
+            String[] ids = Arrays.copyOf(dataNodeIds, index + 1);
+            ids[index] = dataNodeId;
+            int[] ports = Arrays.copyOf(dataNodePorts, index + 1);
+            ports[index] = NameNode.getDataNodePort(dataNodeId);
+            dataNodePorts = ports;
+            dataNodeIds = ids;
+            dataNodeIndexes.put(dataNodeId, index);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the DataNode index of a packed block.
+     *
+     * @param block The packed block.
+     * @return The DataNode index.
+     */
+    public static int getDataNodeIndex(long block) {
+        return (int) (block >>> 32);
+    }
+
+    /**
+     * Gets the DataNode identifier of a packed block.
+     *
+     * @param block The packed block.
+     * @return The interned DataNode identifier.
+     */
+    public String getDataNodeId(long block) {
+        return dataNodeIds[getDataNodeIndex(block)];
+    }
+
+    /**
+     * Gets the port of the DataNode of a packed block.
+     *
+     * @param block The packed block.
+     * @return The port number.
+     */
+    public int getDataNodePort(long block) {
+        return dataNodePorts[getDataNodeIndex(block)];
+    }
+
+    /**
+     * Gets the block number of a packed block.
+     *
+     * @param block The packed block.
+     * @return The block number within its DataNode.
+     */
+    public static int getBlockNumber(long block) {
+        return (int) block;
+    }
+
+    /**
+     * Gets the number of files.
+     *
+     * @return The number of files.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of blocks of all files.
+     *
+     * @return The number of blocks.
+     */
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Checks whether a file exists.
+     *
+     * @param filename The name of the file.
+     * @return True if the file has an entry.
+     */
+    public boolean contains(String filename) {
+        return find(filename) >= 0;
+    }
+
+    /**
+     * Gets the number of blocks of a file.
+     *
+     * @param filename The name of the file.
+     * @return The number of blocks, 0 if the file does not exist.
+     */
+    public int getBlockCount(String filename) {
+        int slot = find(filename);
+        return slot < 0 ? 0 : blockCounts[slot];
+    }
+
+    /**
+     * Gets the generation of a file.
+     *
+     * @param filename The name of the file.
+     * @return The generation, 0 if the file does not exist.
+     */
+    public long getGeneration(String filename) {
+        int slot = find(filename);
+        return slot < 0 ? 0 : generations[slot];
+    }
+
+    /**
+     * Gets one block of a file.
+     *
+     * @param filename The name of the file.
+     * @param index The position of the block within the file, starting at 0.
+     * @return The packed block, or NO_BLOCK if the file has no block at that position.
+     */
+    public long getBlock(String filename, int index) {
+        int slot = find(filename);
+        if (slot < 0 || index < 0 || index >= blockCounts[slot]) {
+            return NO_BLOCK;
+        }
+        return blocks[slot][index];
+    }
+
+    /**
+     * Adds blocks to the end of a file, creating the file if it does not exist.
+     *
+     * @param filename The name of the file.
+     * @param added The packed blocks to add, NO_BLOCK entries at the end are ignored.
+     */
+    public void append(String filename, long[] added) {
+        int slot = find(filename);
+        if (slot < 0) {
+            slot = insert(filename);
+        }
+        int count = blockCounts[slot];
+        int length = length(added);
+        if (count + length > blocks[slot].length) {
+            // Grow by half so files appended to many times are copied a logarithmic number of times
+            blocks[slot] = Arrays.copyOf(blocks[slot], Math.max(count + length, count + (count >> 1)));
+            Arrays.fill(blocks[slot], count + length, blocks[slot].length, NO_BLOCK);
+        }
+        System.arraycopy(added, 0, blocks[slot], count, length);
+        blockCounts[slot] = count + length;
+        blockCount += length;
+    }
+
+    /**
+     * Replaces one block of a file if the file and the block are still the ones the caller looked up.
+     *
+     * @param filename The name of the file.
+     * @param generation The generation of the file when the block was looked up.
+     * @param index The position of the block within the file.
+     * @param expected The packed block expected at that position.
+     * @param replacement The packed block to put there.
+     * @return True if the block was replaced.
+     */
+    public boolean replace(String filename, long generation, int index, long expected, long replacement) {
+        int slot = find(filename);
+        if (slot < 0 || generations[slot] != generation || index >= blockCounts[slot] || blocks[slot][index] != expected) {
+            return false;
+        }
+        blocks[slot][index] = replacement;
+        return true;
+    }
+
+    /**
+     * Drops the blocks of a file after the given number, keeping the file.
+     *
+     * @param filename The name of the file.
+     * @param length The number of blocks to keep.
+     * @return The packed blocks dropped, none if the file was not longer, or null if the file does not exist.
+     */
+    public long[] truncate(String filename, int length) {
+        int slot = find(filename);
+        if (slot < 0) {
+            return null;
+        }
+        int count = blockCounts[slot];
+        if (length >= count) {
+            return new long[0];
+        }
+        long[] removed = Arrays.copyOfRange(blocks[slot], length, count);
+        Arrays.fill(blocks[slot], length, count, NO_BLOCK);
+        blockCounts[slot] = length;
+        blockCount -= count - length;
+        generations[slot] = nextGeneration++; // Appends may put the freed blocks back at the same positions
+        return removed;
+    }
+
+    /**
+     * Removes a file in constant time, handing over its block array.
+     *
+     * @param filename The name of the file.
+     * @return The packed blocks the file had, followed by NO_BLOCK entries if the array has spare room, or null if the
+     *         file did not exist.
+     */
+    public long[] remove(String filename) {
+        int slot = find(filename);
+        if (slot < 0) {
+            return null;
+        }
+        long[] removed = blocks[slot];
+        blockCount -= blockCounts[slot];
+        size--;
+        // Shift later entries of the probe run back so lookups never stop at the hole
+        int mask = names.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; names[next] != null; next = (next + 1) & mask) {
+            int home = mix(hashes[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+        clear(hole);
+        return removed;
+    }
+
+    /**
+     * Gets the number of blocks in an array returned by remove(), the entries before the trailing NO_BLOCK ones.
+     *
+     * @param blocks The packed blocks.
+     * @return The number of blocks.
+     */
+    public static int length(long[] blocks) {
+        int length = blocks.length;
+        while (length > 0 && blocks[length - 1] == NO_BLOCK) {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Gets the names of all files.
+     *
+     * @return The filenames.
+     */
+    public List<String> getFilenames() {
+        List<String> filenames = new ArrayList<>(size);
+        for (byte[] name : names) {
+            if (name != null) {
+                filenames.add(new String(name, StandardCharsets.UTF_8));
+            }
+        }
+        return filenames;
+    }
+
+    /**
+     * Receives the files of the map one at a time.
+     */
+    interface FileVisitor {
+        /**
+         * Visits one file.
+         *
+         * @param filename The name of the file.
+         * @param generation The generation of the file.
+         * @param blocks The packed blocks of the file, only the first count are in use. Must not be modified.
+         * @param count The number of blocks of the file.
+         * @return True to continue with the next file, false to stop.
+         */
+        boolean visit(String filename, long generation, long[] blocks, int count);
+    }
+
+    /**
+     * Visits the files in table order until the visitor stops.
+     *
+     * @param visitor The visitor.
+     */
+    public void forEach(FileVisitor visitor) {
+        for (int slot = 0; slot < names.length; slot++) {
+            if (names[slot] != null
+                    && !visitor.visit(new String(names[slot], StandardCharsets.UTF_8), generations[slot], blocks[slot], blockCounts[slot])) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot of a file.
+     *
+     * @return The slot, or -1 if the file does not exist.
+     */
+    private int find(String filename) {
+        int hash = filename.hashCode();
+        int mask = names.length - 1;
+        for (int slot = mix(hash) & mask; names[slot] != null; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(names[slot], filename)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an empty file, growing the table first if it would become more than three quarters full.
+     *
+     * @return The slot of the file.
+     */
+    private int insert(String filename) {
+        if ((size + 1) * 4L > names.length * 3L) {
+            resize(names.length * 2);
+        }
+        int hash = filename.hashCode();
+        int mask = names.length - 1;
+        int slot = mix(hash) & mask;
+        while (names[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        names[slot] = filename.getBytes(StandardCharsets.UTF_8);
+        hashes[slot] = hash;
+        blocks[slot] = new long[0];
+        generations[slot] = nextGeneration++;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Rehashes every file into a table of the given capacity.
+     */
+    private void resize(int capacity) {
+        byte[][] oldNames = names;
+        int[] oldHashes = hashes;
+        long[][] oldBlocks = blocks;
+        int[] oldCounts = blockCounts;
+        long[] oldGenerations = generations;
+        names = new byte[capacity][];
+        hashes = new int[capacity];
+        blocks = new long[capacity][];
+        blockCounts = new int[capacity];
+        generations = new long[capacity];
+        int mask = capacity - 1;
+        for (int old = 0; old < oldNames.length; old++) {
+            if (oldNames[old] != null) {
+                int slot = mix(oldHashes[old]) & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = oldNames[old];
+                hashes[slot] = oldHashes[old];
+                blocks[slot] = oldBlocks[old];
+                blockCounts[slot] = oldCounts[old];
+                generations[slot] = oldGenerations[old];
+            }
+        }
+    }
+
+    /**
+     * Moves the file of one slot into another.
+     */
+    private void move(int from, int to) {
+        names[to] = names[from];
+        hashes[to] = hashes[from];
+        blocks[to] = blocks[from];
+        blockCounts[to] = blockCounts[from];
+        generations[to] = generations[from];
+    }
+
+    /**
+     * Frees a slot.
+     */
+    private void clear(int slot) {
+        names[slot] = null;
+        hashes[slot] = 0;
+        blocks[slot] = null;
+        blockCounts[slot] = 0;
+        generations[slot] = 0;
+    }
+
+    /**
+     * Spreads the bits of a String hash code, which are poor in the low bits for similar names.
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compares a stored UTF-8 name with a filename without encoding the filename, unless it has non-ASCII characters.
+     */
+    private static boolean matches(byte[] name, String filename) {
+        int length = filename.length();
+        for (int i = 0; i < length; i++) {
+            char c = filename.charAt(i);
+            if (c >= 0x80) {
+                return Arrays.equals(name, filename.getBytes(StandardCharsets.UTF_8));
+            }
+            if (i >= name.length || name[i] != c) {
+                return false; // ASCII encodes as itself, so a differing prefix cannot match
+            }
+        }
+        return name.length == length;
+    }
+}
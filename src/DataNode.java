@@ -1,8 +1,14 @@
 import java.util.LinkedList;
-import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -12,6 +18,21 @@ import java.net.ServerSocket;
  * DataNode class represents a node in the Distributed File System that stores and manages data blocks.
  * It handles requests for allocating, reading, and writing data blocks, ensuring thread-safe operations using synchronization and locks.
  * 
+ * Writes are acknowledged according to the "dfs.durability" system property (NONE, SYNC or GROUP, see Durability).
+ * With GROUP, or with NONE and "dfs.write.coalesce" set to true, writes are buffered by a GroupCommitter that flushes
+ * every "dfs.durability.windowMs" milliseconds (default 5), coalescing repeated writes to the same block.
+ * GROUP only pays off with a store whose sync forces any number of writes at once, the "segment" engine; with the
+ * "file" engine every block file would still be forced on its own, so GROUP falls back to SYNC there.
+ * 
+ * Blocks are stored on disk by the BlockStore named by "dfs.storage.engine": "file" (the default) keeps one file per
+ * block, "segment" appends blocks to large segment files (see SegmentBlockStore). The NameNode keeps no metadata
+ * across restarts, so blocks found in the store at startup are deleted and a DataNode always starts with all blocks free.
+ * 
+ * Hot blocks can also be kept in a MemoryTier of "dfs.tier.memory.capacityBytes" bytes of off-heap memory
+ * (0, which disables it), in slots of "dfs.tier.memory.slotBytes" bytes (the block size). Written blocks and blocks
+ * read "dfs.tier.promoteReads" (2) times recently are promoted, and access counts decay and cold blocks are demoted
+ * every "dfs.tier.demoteIntervalMs" (5000) milliseconds.
+ * 
  * Author: Umar Mohammad
  */
 public class DataNode {
@@ -19,8 +40,14 @@ public class DataNode {
     private int port; // Port number for the DataNode, also serves as an identifier
     private static final int MAX_BLOCKS = 100; // Maximum number of blocks that the DataNode can manage
     private Queue<Integer> availableBlocksQueue; // Queue of available block IDs
-    private HashMap<Integer, Block> usedBlocksMap; // Map of used blocks (block ID to Block object)
+    private Map<Integer, Block> usedBlocksMap; // Map of used blocks (block ID to Block object), read without locking
     private Path dataDirectory; // Directory for storing block files
+    private final BlockStore store; // Storage engine holding the contents of the blocks
+    private final Metrics metrics; // Operation counters, latencies and lock wait times
+    private final Durability durability; // When a write may be acknowledged
+    private final GroupCommitter committer; // Buffers writes for coalescing and group sync, null if writes go straight to disk
+    private final MemoryTier memoryTier; // Copies of hot blocks in memory, null if disabled
+    private final int promoteReads = Integer.getInteger("dfs.tier.promoteReads", 2); // Recent reads that promote a block
 
     // Locks for synchronizing access to shared resources
     private final Object availableQueueLock = new Object();
@@ -28,6 +55,7 @@ public class DataNode {
 
     public static void main(String[] args) throws InterruptedException {
         int port = parseCommandLineArguments(args);
+        Tracer.setService("datanode-" + port);
         DataNode dataNode = new DataNode(port);
         dataNode.start();
         dataNode.stop();
@@ -41,8 +69,34 @@ public class DataNode {
     public DataNode(int port) {
         this.port = port;
         initializeAvailableBlocksQueue();
-        usedBlocksMap = new HashMap<>(MAX_BLOCKS);
+        usedBlocksMap = new ConcurrentHashMap<>(MAX_BLOCKS);
         initializeDataDirectory();
+        metrics = new Metrics("DataNode-" + port);
+        store = openBlockStore();
+        metrics.registerGauge("blocks.free", this::getNumberOfEmptyBlocks);
+        metrics.registerGauge("blocks.used", () -> MAX_BLOCKS - getNumberOfEmptyBlocks());
+        Durability configured = Durability.parse(System.getProperty("dfs.durability", "NONE"));
+        if (configured == Durability.GROUP && !store.hasSharedSync()) {
+            Log.warn("GROUP durability needs a store with a shared sync, using SYNC with: {}", store.getClass().getSimpleName());
+            configured = Durability.SYNC;
+        }
+        durability = configured;
+        if (durability == Durability.GROUP || (durability == Durability.NONE && Boolean.getBoolean("dfs.write.coalesce"))) {
+            committer = new GroupCommitter(this, durability == Durability.GROUP, Long.getLong("dfs.durability.windowMs", 5));
+            committer.start();
+        } else {
+            committer = null;
+        }
+        Log.info("Durability policy: {}, write coalescing: {}", durability, committer != null);
+        long memoryCapacity = Long.getLong("dfs.tier.memory.capacityBytes", 0);
+        if (memoryCapacity > 0) {
+            int slotBytes = Integer.getInteger("dfs.tier.memory.slotBytes", Integer.getInteger("dfs.blockSize", 4194304));
+            memoryTier = new MemoryTier(this, memoryCapacity, slotBytes, Long.getLong("dfs.tier.demoteIntervalMs", 5000));
+            memoryTier.start();
+        } else {
+            memoryTier = null;
+        }
+        Log.info("Memory tier capacity: {} bytes", memoryCapacity);
     }
 
     /**
@@ -60,18 +114,51 @@ public class DataNode {
      */
     private void initializeDataDirectory() {
         dataDirectory = Paths.get("./data_" + port);
-        System.out.println("Storing all files in: " + dataDirectory);
+        Log.info("Storing all files in: {}", dataDirectory);
         if (Files.notExists(dataDirectory)) {
             try {
                 Files.createDirectory(dataDirectory);
             } catch (IOException e) {
-                System.err.println("Unable to create directory: " + dataDirectory);
-                e.printStackTrace();
+                Log.error("Unable to create directory: " + dataDirectory, e);
                 System.exit(5);
             }
         }
     }
 
+    /**
+     * Opens the storage engine named by "dfs.storage.engine" and deletes the blocks it still holds, which no file
+     * references any more.
+     * 
+     * @return The block store.
+     */
+    private BlockStore openBlockStore() {
+        String engine = System.getProperty("dfs.storage.engine", "file");
+        BlockStore blockStore = null;
+        if ("segment".equalsIgnoreCase(engine)) {
+            try {
+                SegmentBlockStore segmentStore = new SegmentBlockStore(dataDirectory, metrics);
+                segmentStore.start();
+                blockStore = segmentStore;
+            } catch (IOException e) {
+                Log.error("Unable to open segment store in: " + dataDirectory, e);
+                System.exit(5);
+            }
+        } else {
+            blockStore = new FileBlockStore(dataDirectory);
+        }
+        int discarded = 0;
+        for (int blockId : blockStore.getBlockIds()) {
+            try {
+                blockStore.delete(blockId);
+                discarded++;
+            } catch (IOException e) {
+                Log.error("Unable to delete stale block: " + blockStore.describe(blockId), e);
+            }
+        }
+        Log.info("Storage engine: {}, stale blocks deleted: {}", engine, discarded);
+        return blockStore;
+    }
+
     /**
      * Parses command line arguments to get the port number.
      * 
@@ -98,13 +185,13 @@ public class DataNode {
     public void start() {
         try {
             dataServer = new ServerSocket(port);
-            System.out.println("DataNode running on port: " + port);
+            metrics.registerMBean();
+            Log.info("DataNode running on port: {}", port);
             while (true) {
                 new DataNodeHandler(dataServer.accept(), this).start();
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("Unable to allocate port: " + port);
+            Log.error("Unable to allocate port: " + port, e);
             System.exit(2);
         }
     }
@@ -116,7 +203,7 @@ public class DataNode {
         try {
             dataServer.close();
         } catch (IOException e) {
-            System.err.println("Issue stopping DataNode server...");
+            Log.error("Issue stopping DataNode server...");
             System.exit(3);
         }
     }
@@ -134,24 +221,35 @@ public class DataNode {
             }
         }
         if (blockId != -1) {
-            String filename = dataDirectory.toString() + "/blk_" + blockId + ".bin";
-            System.out.println("Allocating: " + filename);
+            String filename = store.describe(blockId);
+            Log.debug("Allocating: {}", filename);
             synchronized (usedMapLock) {
                 Block block = new Block(filename);
                 usedBlocksMap.put(blockId, block);
             }
             try {
-                Path path = Paths.get(filename);
-                Files.deleteIfExists(path);
-                Files.createFile(path);
+                store.create(blockId);
             } catch (IOException e) {
-                System.err.println("Unable to open file: " + filename + " for block: " + blockId);
-                e.printStackTrace();
+                Log.error("Unable to open file: " + filename + " for block: " + blockId, e);
             }
         }
         return blockId;
     }
 
+    /**
+     * Receives the contents of a block, wherever they were read from.
+     */
+    private interface BlockReader<T> {
+        /**
+         * Reads the contents.
+         *
+         * @param contents The contents, a view of off-heap memory that is only valid during the call if the block is cached.
+         * @return The result of the read.
+         * @throws IOException If the contents cannot be passed on.
+         */
+        T read(ByteBuffer contents) throws IOException;
+    }
+
     /**
      * Reads the contents of the specified block.
      * 
@@ -159,55 +257,237 @@ public class DataNode {
      * @return The contents of the block, or null if the block ID is invalid.
      */
     public String readBlock(int blockId) {
-        if (blockId >= MAX_BLOCKS || !usedBlocksMap.containsKey(blockId)) {
-            System.err.println("Requested block not found or not in use: " + blockId);
-            return null;
+        try {
+            return readBlock(blockId, DataNode::decode);
+        } catch (IOException e) {
+            throw new IllegalStateException("Decoding does no I/O", e);
         }
+    }
+
+    /**
+     * Sends the contents of the specified block to a stream. Blocks cached in the memory tier are sent straight from
+     * off-heap memory, without taking a copy of the block on the heap.
+     *
+     * @param blockId The block ID.
+     * @param out The stream to send the contents to.
+     * @return The number of bytes sent, or -1 if the block ID is invalid.
+     * @throws IOException If the contents cannot be sent.
+     */
+    public long sendBlock(int blockId, OutputStream out) throws IOException {
+        Long sent = readBlock(blockId, contents -> {
+            long length = contents.remaining();
+            if (contents.hasArray()) {
+                out.write(contents.array(), contents.arrayOffset() + contents.position(), contents.remaining());
+            } else {
+                Channels.newChannel(out).write(contents);
+            }
+            return length;
+        });
+        return sent == null ? -1 : sent;
+    }
+
+    /**
+     * Reads the contents of the specified block from the write buffer, the memory tier or the store.
+     *
+     * @param blockId The block ID.
+     * @param reader What to do with the contents.
+     * @return The result of the reader, or null if the block ID is invalid.
+     * @throws IOException If the reader fails.
+     */
+    private <T> T readBlock(int blockId, BlockReader<T> reader) throws IOException {
         Block block = usedBlocksMap.get(blockId);
-        Path path = Paths.get(block.getFilename());
-        if (!Files.exists(path)) {
+        if (block == null) {
+            Log.warn("Requested block not found or not in use: {}", blockId);
             return null;
         }
+        if (committer != null) {
+            byte[] buffered = committer.getBuffered(blockId, block);
+            if (buffered != null) {
+                return reader.read(ByteBuffer.wrap(buffered));
+            }
+        }
         byte[] data = null;
+        long waitStart = System.nanoTime();
         block.getReadLock().lock();
+        metrics.recordLatency("lock.blockRead.wait", System.nanoTime() - waitStart);
         try {
-            data = Files.readAllBytes(path);
-        } catch (IOException e) {
-            System.err.println("Unable to read file: " + path);
-            e.printStackTrace();
+            int accesses = block.recordAccess();
+            ByteBuffer cached = memoryTier == null ? null : memoryTier.get(blockId);
+            if (cached != null) {
+                return reader.read(cached); // Under the lock, the slot is reused once the block is demoted
+            }
+            try {
+                data = store.read(blockId);
+            } catch (IOException e) {
+                Log.error("Unable to read file: " + block.getFilename(), e);
+            }
+            if (data == null) {
+                return null;
+            }
+            if (memoryTier != null && accesses >= promoteReads) {
+                memoryTier.put(blockId, block, data);
+            }
         } finally {
             block.getReadLock().unlock();
         }
-        return new String(data);
+        return reader.read(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Decodes the contents of a block with the platform charset they were encoded with.
+     *
+     * @param contents The contents.
+     * @return The contents as a string.
+     */
+    private static String decode(ByteBuffer contents) {
+        if (contents.hasArray()) {
+            return new String(contents.array(), contents.arrayOffset() + contents.position(), contents.remaining());
+        }
+        return Charset.defaultCharset().decode(contents).toString();
     }
 
     /**
      * Writes the specified contents to the block.
+     * Returns once the write is as durable as the configured durability policy requires.
      * 
      * @param blockId  The block ID.
      * @param contents The contents to write to the block.
      * @return True if the write operation was successful, false otherwise.
      */
     public boolean writeBlock(int blockId, String contents) {
-        if (blockId >= MAX_BLOCKS || !usedBlocksMap.containsKey(blockId)) {
-            System.err.println("Requested block not found: " + blockId);
+        Block block = usedBlocksMap.get(blockId);
+        if (block == null) {
+            Log.warn("Requested block not found: {}", blockId);
             return false;
         }
-        Block block = usedBlocksMap.get(blockId);
-        Path path = Paths.get(block.getFilename());
         byte[] data = contents.getBytes();
+        if (committer == null) {
+            return flushBlock(blockId, block, data, durability == Durability.SYNC);
+        }
+        if (durability == Durability.NONE) {
+            committer.submit(blockId, block, data);
+            return true;
+        }
+        try {
+            return committer.submit(blockId, block, data).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.error("Group commit failed for block: " + blockId, e);
+            return false;
+        }
+    }
+
+    /**
+     * Replaces the contents of a block in the store, optionally forcing them to the storage device.
+     * 
+     * @param blockId The block ID.
+     * @param block The block the write was made to.
+     * @param data The new contents of the block.
+     * @param force Whether to sync the store before returning.
+     * @return True if the contents were written, false otherwise or if the block has been released since.
+     */
+    boolean flushBlock(int blockId, Block block, byte[] data, boolean force) {
+        long waitStart = System.nanoTime();
+        block.getWriteLock().lock();
+        metrics.recordLatency("lock.blockWrite.wait", System.nanoTime() - waitStart);
+        try {
+            if (usedBlocksMap.get(blockId) != block) {
+                return false; // Released, and maybe allocated again, while the write was waiting
+            }
+            store.write(blockId, data);
+            if (force) {
+                long forceStart = System.nanoTime();
+                store.sync(blockId); // Only this block, other writers force their own blocks
+                metrics.recordLatency("write.force", System.nanoTime() - forceStart);
+            }
+            if (memoryTier != null) {
+                // New contents are likely to be read soon, and must never be shadowed by a stale copy
+                block.recordAccess();
+                if (!memoryTier.put(blockId, block, data)) {
+                    memoryTier.remove(blockId);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.error("Unable to write contents to block: " + blockId + " (file: " + block.getFilename() + ")", e);
+            if (memoryTier != null) {
+                memoryTier.remove(blockId); // The file may hold anything now, reads must not see the old contents
+            }
+            return false;
+        } finally {
+            block.getWriteLock().unlock();
+        }
+    }
+
+    /**
+     * Forces every block written so far to the storage device.
+     * 
+     * @throws IOException If the store cannot be synced.
+     */
+    void syncStore() throws IOException {
+        long forceStart = System.nanoTime();
+        store.sync();
+        metrics.recordLatency("write.force", System.nanoTime() - forceStart);
+    }
+
+    /**
+     * Releases a block, deleting its contents and making it available for allocation again.
+     * Drops writes of the block that are still buffered and waits for reads and writes in progress on the block to
+     * finish before its contents are deleted.
+     * 
+     * @param blockId The block ID.
+     * @return True if the block was released, false if it was not in use.
+     */
+    public boolean releaseBlock(int blockId) {
+        Block block;
+        synchronized (usedMapLock) {
+            block = usedBlocksMap.remove(blockId);
+        }
+        if (block == null) {
+            Log.warn("Requested block not found or not in use: {}", blockId);
+            return false;
+        }
+        if (committer != null) {
+            committer.discard(blockId);
+        }
         block.getWriteLock().lock();
         try {
-            Files.write(path, data);
+            if (memoryTier != null) {
+                memoryTier.remove(blockId);
+            }
+            store.delete(blockId);
         } catch (IOException e) {
-            System.err.println("Unable to write contents to block: " + blockId + " (file: " + path + ")");
-            e.printStackTrace();
+            Log.error("Unable to delete file: " + block.getFilename() + " for block: " + blockId, e);
         } finally {
             block.getWriteLock().unlock();
         }
+        synchronized (availableQueueLock) {
+            availableBlocksQueue.add(blockId);
+        }
+        Log.debug("Released block: {}", blockId);
         return true;
     }
 
+    /**
+     * Halves the recent read count of every block, called periodically by the memory tier.
+     */
+    void decayAccessCounts() {
+        for (Block block : usedBlocksMap.values()) {
+            block.decayAccessCount();
+        }
+    }
+
+    /**
+     * Gets the total number of blocks this DataNode can store.
+     * 
+     * @return The block capacity.
+     */
+    public int getCapacity() {
+        return MAX_BLOCKS;
+    }
+
     /**
      * Checks if the DataNode has no available blocks.
      * 
@@ -226,6 +506,15 @@ public class DataNode {
         return availableBlocksQueue.size();
     }
 
+    /**
+     * Gets the metrics collected by this DataNode.
+     * 
+     * @return The metrics registry.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Prints the contents of all used blocks.
      */
@@ -1,5 +1,7 @@
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 
@@ -29,16 +31,16 @@ class DataNodeHandler extends Thread {
     /**
      * Reads a command from the client.
      * 
-     * @return The command as a string.
+     * @return The command as a string, or null if the client disconnected without sending one.
      */
     private String readCommand() {
         String command = null;
         try {
             inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            command = inputReader.readLine().trim();
+            String line = inputReader.readLine();
+            command = line == null ? null : line.trim();
         } catch (Exception e) {
-            System.err.println("Handler error while trying to read a command!");
-            e.printStackTrace();
+            Log.error("Handler error while trying to read a command!", e);
         }
         return command;
     }
@@ -54,65 +56,148 @@ class DataNodeHandler extends Thread {
             outputWriter.print(message);
             outputWriter.flush();
         } catch (Exception e) {
-            System.err.println("Handler error while trying to return message to client!");
-            e.printStackTrace();
+            Log.error("Handler error while trying to return message to client!", e);
         }
     }
 
+    /**
+     * Sends the contents of a block to the client, straight from where the DataNode holds them.
+     *
+     * @param blockId The block ID.
+     * @param metrics The metrics of the DataNode.
+     * @return True if a response was sent, false if the block ID is invalid and nothing was.
+     */
+    private boolean sendBlock(int blockId, Metrics metrics) {
+        try {
+            OutputStream out = clientSocket.getOutputStream();
+            long sent = dataNode.sendBlock(blockId, out);
+            out.flush();
+            if (sent < 0) {
+                return false;
+            }
+            metrics.add("bytes.out", sent);
+        } catch (IOException e) {
+            Log.error("Handler error while trying to return message to client!", e);
+        }
+        return true;
+    }
+
     /**
      * Ensures that connections are closed.
      */
     private void closeConnection() {
         try {
             clientSocket.close();
-            inputReader.close();
-            outputWriter.close();
+            if (inputReader != null) {
+                inputReader.close();
+            }
+            if (outputWriter != null) {
+                outputWriter.close();
+            }
         } catch (Exception e) {
-            System.err.println("Handler error while trying to close the connection!");
-            e.printStackTrace();
+            Log.error("Handler error while trying to close the connection!", e);
         }
     }
 
     @Override
     public void run() {
+        Metrics metrics = dataNode.getMetrics();
+        metrics.increment("connections.total");
+        metrics.add("connections.active", 1);
+        try {
+            handle(metrics);
+        } finally {
+            metrics.add("connections.active", -1);
+        }
+    }
+
+    /**
+     * Reads one command, performs it on the DataNode and sends the response.
+     *
+     * @param metrics The metrics of the DataNode.
+     */
+    private void handle(Metrics metrics) {
         // This is where the command parsing, DataNode commanding, and message return happens
         String command = readCommand();
-        System.out.println("Port[" + this.clientSocket.getPort() + "] received message: " + command);
+        if (command == null) {
+            // The peer disconnected before sending a command
+            closeConnection();
+            return;
+        }
+        Log.debug("Port[{}] received message: {}", this.clientSocket.getPort(), command);
+        metrics.addBytes("bytes.in", command);
 
         String responseMessage = "DEFAULT";
+        boolean responded = false; // Whether the response was sent while performing the command
+        long startTime = System.nanoTime();
 
         // Parse the command and perform the requested action
-        String[] commandParts = command.split(" ", 2);
+        Headers headers = Headers.parse(command);
+        String[] commandParts = headers.getBody().split(" ", 2);
         String commandKey = commandParts[0];
+        Span span = Tracer.continueTrace(headers.get("trace"), "datanode." + commandKey.toLowerCase());
+        Span diskSpan = span.child("datanode.disk");
 
         switch (commandKey.toUpperCase()) {
             case "ALLOC":
                 // Allocate a block
                 int allocatedBlock = dataNode.allocateBlock();
                 responseMessage = String.valueOf(allocatedBlock);
+                metrics.recordLatency("op.alloc", System.nanoTime() - startTime);
                 break;
             case "READ":
-                // Read from a block
+                // Read from a block, sending it as it is read
                 int readBlockId = Integer.parseInt(commandParts[1]);
-                String blockContents = dataNode.readBlock(readBlockId);
-                responseMessage = blockContents;
+                responded = sendBlock(readBlockId, metrics);
+                responseMessage = null; // Reported for a block that does not exist
+                metrics.recordLatency("op.read", System.nanoTime() - startTime);
                 break;
             case "WRITE":
                 // Write to a block
                 String[] writeParts = commandParts[1].split(" ", 2);
                 int writeBlockId = Integer.parseInt(writeParts[0]);
-                String writeData = writeParts[1];
-                dataNode.writeBlock(writeBlockId, writeData);
-                responseMessage = "COMPLETE";
+                String writeData = writeParts.length > 1 ? writeParts[1] : ""; // An empty block, its space was trimmed off
+                boolean written = dataNode.writeBlock(writeBlockId, writeData);
+                responseMessage = written ? "COMPLETE" : "ERROR: Write failed";
+                metrics.recordLatency("op.write", System.nanoTime() - startTime);
+                break;
+            case "FREE":
+                // Release one or more blocks that are no longer referenced
+                StringBuilder notFreed = new StringBuilder();
+                for (String freeBlockId : commandParts[1].trim().split(" +")) {
+                    if (!dataNode.releaseBlock(Integer.parseInt(freeBlockId))) {
+                        notFreed.append(' ').append(freeBlockId);
+                    }
+                }
+                responseMessage = notFreed.length() == 0 ? "COMPLETE" : "ERROR: No such block:" + notFreed;
+                metrics.recordLatency("op.free", System.nanoTime() - startTime);
+                break;
+            case "USAGE":
+                // Report the number of used blocks and the block capacity
+                responseMessage = (dataNode.getCapacity() - dataNode.getNumberOfEmptyBlocks()) + " " + dataNode.getCapacity();
+                break;
+            case "STATS":
+                // Report the metrics of this DataNode
+                responseMessage = metrics.format();
                 break;
             default:
                 // Error, invalid command
                 responseMessage = "ERROR: Invalid Command";
+                metrics.increment("errors");
                 break;
         }
+        diskSpan.end();
 
         // Send response to the client
-        sendResponse(responseMessage);
+        if (!responded) {
+            Span respondSpan = span.child("datanode.respond");
+            sendResponse(responseMessage);
+            respondSpan.end();
+            if (responseMessage != null) {
+                metrics.addBytes("bytes.out", responseMessage);
+            }
+        }
+        span.end();
 
         // Close the connection
         closeConnection();
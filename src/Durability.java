@@ -0,0 +1,24 @@
+/**
+ * Durability enum lists the policies a DataNode can use before acknowledging a block write.
+ * The policy is selected with the "dfs.durability" system property.
+ */
+public enum Durability {
+    NONE,  // Acknowledge once the data is handed to the operating system, never fsync
+    SYNC,  // Fsync the block file on every write before acknowledging
+    GROUP; // Collect writes for a short window and fsync them together before acknowledging, needs a shared sync
+
+    /**
+     * Parses a durability policy name, falling back to NONE for unknown names.
+     *
+     * @param name The policy name, case insensitive.
+     * @return The durability policy.
+     */
+    public static Durability parse(String name) {
+        try {
+            return Durability.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("Unknown durability policy: {}, using NONE", name);
+            return NONE;
+        }
+    }
+}
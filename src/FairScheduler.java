@@ -0,0 +1,340 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * FairScheduler class runs NameNode requests on a fixed pool of workers with bounded admission.
+ * Requests are queued per client and served by deficit round robin, where every client earns credit in proportion to
+ * its weight. A request is charged an estimate of its cost when it is dequeued, and once it has run the charge is
+ * settled to the bytes it actually moved, so a client whose requests turn out to be expensive, such as reads of large
+ * files, falls behind the others instead of getting the same share of workers as a client doing small reads.
+ * Debt is carried while a client has requests queued or running and forgiven once it has none.
+ * When the queue is full new requests are rejected instead of piling up. A client holding fewer queued requests than
+ * the client with the most still gets in, by rejecting the newest request of that client instead, so a flood from one
+ * client cannot lock the others out. Requests whose deadline has passed by the time a worker reaches them are dropped
+ * without being executed.
+ */
+public class FairScheduler {
+    private static final int QUANTUM = 4 * 1024; // Bytes of credit a client of weight 1 earns per round
+    static final int MIN_COST = 4 * 1024; // Cost charged for small requests, whose real work is not in their size
+
+    private final int capacity; // Maximum number of queued requests across all clients
+    private final Map<String, Integer> weights; // Configured weights by client id, 1 for unlisted clients
+    private final Metrics metrics; // Queue and scheduling metrics
+    private final ReentrantLock lock = new ReentrantLock(); // Guards all queue state
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, ClientQueue> queues = new HashMap<>(); // Queues of clients with pending requests
+    private final ArrayDeque<ClientQueue> active = new ArrayDeque<>(); // Round robin order of clients with pending requests
+    private final Thread[] workers;
+    private int queued; // Number of queued requests across all clients
+    private volatile boolean running = true;
+
+    /**
+     * A request waiting to be executed.
+     */
+    public static class Task {
+        private final String clientId; // Client the request is accounted to
+        private final long cost; // Estimated cost of the request in bytes
+        private final long deadlineNanos; // System.nanoTime() after which the request is dropped, 0 for none
+        private final long enqueuedNanos; // When the request was admitted
+        private final LongSupplier work; // Executes the request and returns the bytes it moved
+        private final Runnable onExpired; // Answers the client when the deadline passed
+        private final Runnable onRejected; // Answers the client when the request was pushed out of the queue
+
+        /**
+         * Constructor to describe a request.
+         *
+         * @param clientId The client the request is accounted to.
+         * @param cost The estimated cost of the request in bytes.
+         * @param timeoutMillis The time the client is willing to wait, 0 for no deadline.
+         * @param work Executes the request and returns the bytes it actually moved.
+         * @param onExpired Answers the client when the deadline passed.
+         * @param onRejected Answers the client when the request was pushed out of the queue by another client
+         *                   or the scheduler was shut down.
+         */
+        public Task(String clientId, long cost, long timeoutMillis, LongSupplier work, Runnable onExpired,
+                Runnable onRejected) {
+            this.clientId = clientId;
+            this.cost = Math.max(MIN_COST, cost);
+            this.enqueuedNanos = System.nanoTime();
+            this.deadlineNanos = timeoutMillis > 0 ? enqueuedNanos + timeoutMillis * 1_000_000 : 0;
+            this.work = work;
+            this.onExpired = onExpired;
+            this.onRejected = onRejected;
+        }
+    }
+
+    /**
+     * Pending requests of one client and its round robin credit.
+     * The queue is in the round robin order while it has pending requests, and is kept while any request runs.
+     */
+    private static class ClientQueue {
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private final int weight;
+        private long deficit; // Bytes the client may still be served this round, negative while in debt
+        private int running; // Requests taken by a worker and not settled yet
+
+        private ClientQueue(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Constructor to start the scheduler and its workers.
+     *
+     * @param workerCount The number of worker threads.
+     * @param capacity The maximum number of queued requests.
+     * @param weights The weight of each listed client id.
+     * @param metrics The metrics registry to record into.
+     */
+    public FairScheduler(int workerCount, int capacity, Map<String, Integer> weights, Metrics metrics) {
+        this.capacity = capacity;
+        this.weights = weights;
+        this.metrics = metrics;
+        metrics.registerGauge("scheduler.queued", this::getQueued);
+        workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(this::workerLoop, "namenode-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Parses client weights in the form "clientA:4,clientB:2".
+     *
+     * @param spec The weight specification, may be empty.
+     * @return The weights by client id.
+     */
+    public static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length == 2) {
+                try {
+                    weights.put(parts[0], Math.max(1, Integer.parseInt(parts[1])));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring invalid client weight: {}", entry);
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Admits a request if there is room in the queue.
+     *
+     * @param task The request.
+     * @return True if the request was queued, false if it was rejected because the NameNode is overloaded.
+     */
+    public boolean submit(Task task) {
+        Task evicted = null;
+        lock.lock();
+        try {
+            if (!running) {
+                metrics.increment("requests.rejected");
+                return false;
+            }
+            ClientQueue queue = queues.get(task.clientId);
+            if (queued >= capacity) {
+                evicted = evictFromLongest(queue == null ? 0 : queue.tasks.size());
+                if (evicted == null) {
+                    metrics.increment("requests.rejected");
+                    return false;
+                }
+            }
+            if (queue == null) {
+                queue = new ClientQueue(weights.getOrDefault(task.clientId, 1));
+                queues.put(task.clientId, queue);
+            }
+            if (queue.tasks.isEmpty()) {
+                active.addLast(queue);
+            }
+            queue.tasks.addLast(task);
+            queued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+            if (evicted != null) {
+                metrics.increment("requests.rejected");
+                evicted.onRejected.run();
+            }
+        }
+    }
+
+    /**
+     * Makes room for a request by removing the newest request of the client with the most queued requests,
+     * provided that client holds more than one request beyond the submitting client. Must hold the lock.
+     *
+     * @param ownQueued The number of requests the submitting client already has queued.
+     * @return The removed request, or null if no client holds more than its share.
+     */
+    private Task evictFromLongest(int ownQueued) {
+        ClientQueue longest = null;
+        for (ClientQueue queue : active) {
+            if (longest == null || queue.tasks.size() > longest.tasks.size()) {
+                longest = queue;
+            }
+        }
+        if (longest == null || longest.tasks.size() <= ownQueued + 1) {
+            return null;
+        }
+        Task evicted = longest.tasks.pollLast();
+        queued--;
+        return evicted;
+    }
+
+    /**
+     * Gets the number of queued requests.
+     *
+     * @return The queue length.
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers once they finish their current request, rejecting the requests still queued so that
+     * their clients are answered.
+     */
+    public void shutdown() {
+        List<Task> dropped = new ArrayList<>();
+        lock.lock();
+        try {
+            running = false;
+            for (ClientQueue queue : active) {
+                dropped.addAll(queue.tasks);
+                queue.tasks.clear();
+            }
+            active.clear();
+            queued = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (Task task : dropped) {
+            metrics.increment("requests.rejected");
+            task.onRejected.run();
+        }
+    }
+
+    /**
+     * Body of a worker thread.
+     */
+    private void workerLoop() {
+        while (running) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            metrics.recordLatency("scheduler.wait", now - task.enqueuedNanos);
+            long actualCost = task.cost;
+            if (task.deadlineNanos != 0 && now > task.deadlineNanos) {
+                metrics.increment("requests.expired");
+                task.onExpired.run();
+                actualCost = 0;
+            } else {
+                try {
+                    actualCost = Math.max(MIN_COST, task.work.getAsLong());
+                } catch (RuntimeException e) {
+                    Log.error("Request failed for client " + task.clientId, e);
+                }
+            }
+            settle(task, actualCost);
+        }
+    }
+
+    /**
+     * Replaces the estimated cost a request was charged with its actual cost.
+     *
+     * @param task The request, taken by a worker.
+     * @param actualCost The actual cost in bytes.
+     */
+    private void settle(Task task, long actualCost) {
+        lock.lock();
+        try {
+            ClientQueue queue = queues.get(task.clientId);
+            queue.deficit += task.cost - actualCost;
+            queue.running--;
+            if (queue.tasks.isEmpty()) {
+                if (queue.running == 0) {
+                    queues.remove(task.clientId); // Nothing left to run, any debt is forgiven
+                } else {
+                    queue.deficit = Math.min(queue.deficit, 0); // An idle client does not bank credit
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Credits every client with the whole rounds that pass before the client closest to affording its next request
+     * can afford it, so clients deep in debt cost one pass instead of one pass per round. Must hold the lock.
+     */
+    private void skipRounds() {
+        long rounds = Long.MAX_VALUE;
+        for (ClientQueue queue : active) {
+            long credit = (long) QUANTUM * queue.weight;
+            rounds = Math.min(rounds, (queue.tasks.peekFirst().cost - queue.deficit + credit - 1) / credit - 1);
+        }
+        if (rounds > 0) {
+            for (ClientQueue queue : active) {
+                queue.deficit += rounds * QUANTUM * queue.weight;
+            }
+        }
+    }
+
+    /**
+     * Removes the next request in deficit round robin order, waiting if none is queued.
+     */
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0) {
+                notEmpty.await();
+            }
+            int passed = 0; // Clients passed over since a request was last taken
+            while (true) {
+                ClientQueue queue = active.peekFirst();
+                Task head = queue.tasks.peekFirst();
+                if (queue.deficit < head.cost) {
+                    if (++passed > active.size()) {
+                        skipRounds();
+                        passed = 0;
+                    }
+                    queue.deficit += (long) QUANTUM * queue.weight;
+                    active.addLast(active.pollFirst());
+                    continue;
+                }
+                queue.deficit -= head.cost;
+                queue.tasks.pollFirst();
+                queue.running++;
+                queued--;
+                if (queue.tasks.isEmpty()) {
+                    active.pollFirst();
+                    queue.deficit = Math.min(queue.deficit, 0); // An idle client does not bank credit
+                }
+                return head;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileBlockStore class stores every block of a DataNode in its own "blk_<id>.bin" file, the original DataNode layout.
+ * Each write replaces the whole file, sync(blockId) forces the file of one block and sync() every file written since.
+ */
+class FileBlockStore implements BlockStore {
+    private final Path directory; // Directory holding the block files
+    private final Set<Integer> unsynced = ConcurrentHashMap.newKeySet(); // Blocks written since the last sync
+
+    /**
+     * Constructor to open the block files in a directory.
+     *
+     * @param directory The directory holding the block files.
+     */
+    public FileBlockStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public Set<Integer> getBlockIds() {
+        Set<Integer> blockIds = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "blk_*.bin")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    blockIds.add(Integer.parseInt(name.substring("blk_".length(), name.length() - ".bin".length())));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unexpected file: {}", file);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("Unable to list block files in: " + directory, e);
+        }
+        return blockIds;
+    }
+
+    @Override
+    public void create(int blockId) throws IOException {
+        Path path = getPath(blockId);
+        Files.deleteIfExists(path);
+        Files.createFile(path);
+    }
+
+    @Override
+    public byte[] read(int blockId) throws IOException {
+        try {
+            return Files.readAllBytes(getPath(blockId));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void write(int blockId, byte[] data) throws IOException {
+        try (FileChannel channel = FileChannel.open(getPath(blockId), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        unsynced.add(blockId);
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Integer blockId : unsynced) {
+            sync(blockId);
+        }
+    }
+
+    @Override
+    public void sync(int blockId) throws IOException {
+        unsynced.remove(blockId);
+        try (FileChannel channel = FileChannel.open(getPath(blockId), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            // Deleted since it was written, nothing left to force
+        }
+    }
+
+    @Override
+    public boolean hasSharedSync() {
+        return false; // Every written block file is forced on its own
+    }
+
+    @Override
+    public void delete(int blockId) throws IOException {
+        unsynced.remove(blockId);
+        Files.deleteIfExists(getPath(blockId));
+    }
+
+    @Override
+    public String describe(int blockId) {
+        return getPath(blockId).toString();
+    }
+
+    /**
+     * Gets the file of a block.
+     */
+    private Path getPath(int blockId) {
+        return directory.resolve("blk_" + blockId + ".bin");
+    }
+}
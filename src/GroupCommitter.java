@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * GroupCommitter class buffers block writes on a DataNode and flushes them from a single background thread.
+ * Writes to the same block that arrive within one flush window are coalesced, since every write replaces the
+ * whole block only the latest contents are written to disk. With the GROUP durability policy all writes of a
+ * window are written first and then forced with a single sync of the block store, and their callers are completed
+ * once that sync has finished. Writes are tied to the Block they were made to, so a write still buffered when its
+ * block is released can never reach the block that is allocated under the same ID next.
+ */
+class GroupCommitter extends Thread {
+    private final DataNode dataNode; // DataNode whose blocks are flushed
+    private final boolean force; // Whether a flush fsyncs the written blocks
+    private final long windowMillis; // How long writes are collected before a flush
+    private final Object pendingLock = new Object(); // Guards pending and flushing
+    private Map<Integer, PendingWrite> pending = new HashMap<>(); // Writes waiting for the next flush
+    private Map<Integer, PendingWrite> flushing = new HashMap<>(); // Writes of the flush in progress
+
+    /**
+     * The latest contents of a block and everyone waiting for them to reach the disk.
+     */
+    private static class PendingWrite {
+        private final Block block; // Block the contents were written to
+        private byte[] data;
+        private volatile boolean discarded; // Set when the block is released while the write is being flushed
+        private final List<CompletableFuture<Boolean>> waiters = new ArrayList<>();
+
+        private PendingWrite(Block block) {
+            this.block = block;
+        }
+    }
+
+    /**
+     * Constructor to create the committer for a DataNode.
+     *
+     * @param dataNode The DataNode whose blocks are flushed.
+     * @param force Whether a flush fsyncs the written blocks.
+     * @param windowMillis How long writes are collected before a flush.
+     */
+    public GroupCommitter(DataNode dataNode, boolean force, long windowMillis) {
+        super("group-committer");
+        this.dataNode = dataNode;
+        this.force = force;
+        this.windowMillis = windowMillis;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues a write for the next flush, replacing any earlier contents still queued for the same block.
+     *
+     * @param blockId The block ID.
+     * @param block The block the write is made to.
+     * @param data The new contents of the block.
+     * @return A future completed with the outcome of the flush that writes these contents.
+     */
+    public CompletableFuture<Boolean> submit(int blockId, Block block, byte[] data) {
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        List<CompletableFuture<Boolean>> superseded = null; // Waiters of a write to a released block
+        synchronized (pendingLock) {
+            PendingWrite write = pending.get(blockId);
+            if (write != null && write.block != block) {
+                superseded = write.waiters;
+                write = null;
+            }
+            if (write == null) {
+                write = new PendingWrite(block);
+                pending.put(blockId, write);
+            } else {
+                dataNode.getMetrics().increment("write.coalesced");
+            }
+            write.data = data;
+            write.waiters.add(done);
+            pendingLock.notify();
+        }
+        fail(superseded);
+        return done;
+    }
+
+    /**
+     * Drops the buffered writes of a block that is being released, failing their callers.
+     * A write of the block that is being flushed right now is skipped by the flush.
+     *
+     * @param blockId The block ID.
+     */
+    public void discard(int blockId) {
+        List<CompletableFuture<Boolean>> dropped = null;
+        synchronized (pendingLock) {
+            PendingWrite write = pending.remove(blockId);
+            if (write != null) {
+                dropped = write.waiters;
+            }
+            PendingWrite flushingWrite = flushing.get(blockId);
+            if (flushingWrite != null) {
+                flushingWrite.discarded = true;
+            }
+        }
+        fail(dropped);
+    }
+
+    /**
+     * Completes the callers of writes that will never be flushed.
+     */
+    private void fail(List<CompletableFuture<Boolean>> waiters) {
+        if (waiters == null) {
+            return;
+        }
+        dataNode.getMetrics().add("write.discarded", waiters.size());
+        for (CompletableFuture<Boolean> waiter : waiters) {
+            waiter.complete(false);
+        }
+    }
+
+    /**
+     * Gets the contents of a block that were accepted but may not be on disk yet.
+     *
+     * @param blockId The block ID.
+     * @param block The block being read.
+     * @return The buffered contents, or null if nothing is buffered for the block.
+     */
+    public byte[] getBuffered(int blockId, Block block) {
+        synchronized (pendingLock) {
+            PendingWrite write = pending.get(blockId);
+            if (write == null) {
+                write = flushing.get(blockId);
+            }
+            return write == null || write.block != block || write.discarded ? null : write.data;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                synchronized (pendingLock) {
+                    while (pending.isEmpty()) {
+                        pendingLock.wait();
+                    }
+                }
+                // Give concurrent writers one window to join this group
+                Thread.sleep(windowMillis);
+                flush();
+            } catch (InterruptedException e) {
+                flush();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes every queued block once and completes the waiting writers.
+     */
+    private void flush() {
+        synchronized (pendingLock) {
+            flushing = pending;
+            pending = new HashMap<>();
+        }
+        long startTime = System.nanoTime();
+        Map<Integer, Boolean> written = new HashMap<>();
+        for (Map.Entry<Integer, PendingWrite> entry : flushing.entrySet()) {
+            PendingWrite write = entry.getValue();
+            written.put(entry.getKey(), !write.discarded && dataNode.flushBlock(entry.getKey(), write.block, write.data, false));
+        }
+        boolean synced = true;
+        if (force) {
+            try {
+                dataNode.syncStore();
+            } catch (IOException e) {
+                Log.error("Unable to sync the block store", e);
+                synced = false;
+            }
+        }
+        for (Map.Entry<Integer, PendingWrite> entry : flushing.entrySet()) {
+            for (CompletableFuture<Boolean> waiter : entry.getValue().waiters) {
+                waiter.complete(synced && written.get(entry.getKey()));
+            }
+        }
+        dataNode.getMetrics().recordLatency("write.groupFlush", System.nanoTime() - startTime);
+        dataNode.getMetrics().add("write.groupFlush.blocks", flushing.size());
+        synchronized (pendingLock) {
+            flushing = new HashMap<>();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Headers class handles the optional "@key=value" tokens that may precede a command on the wire,
+ * e.g. "@trace=1f2e-3d4c READ file.txt". Commands without headers are parsed without any copying,
+ * so existing clients that never send headers keep working unchanged.
+ */
+public class Headers {
+    private final Map<String, String> values; // Header values by key
+    private final String body; // The command that follows the headers
+
+    private Headers(Map<String, String> values, String body) {
+        this.values = values;
+        this.body = body;
+    }
+
+    /**
+     * Splits a line received on the wire into its headers and the command body.
+     *
+     * @param line The received line.
+     * @return The parsed headers.
+     */
+    public static Headers parse(String line) {
+        if (line == null || !line.startsWith("@")) {
+            return new Headers(Collections.emptyMap(), line);
+        }
+        Map<String, String> values = new HashMap<>();
+        int start = 0;
+        while (start < line.length() && line.charAt(start) == '@') {
+            int end = line.indexOf(' ', start);
+            if (end < 0) {
+                end = line.length();
+            }
+            int separator = line.indexOf('=', start);
+            if (separator > start && separator < end) {
+                values.put(line.substring(start + 1, separator), line.substring(separator + 1, end));
+            }
+            start = Math.min(end + 1, line.length());
+        }
+        return new Headers(values, line.substring(start));
+    }
+
+    /**
+     * Prepends a header to a command.
+     *
+     * @param key The header key.
+     * @param value The header value, must not contain spaces.
+     * @param command The command, possibly already carrying headers.
+     * @return The command with the header in front.
+     */
+    public static String prepend(String key, String value, String command) {
+        return "@" + key + "=" + value + " " + command;
+    }
+
+    /**
+     * Gets the value of a header.
+     *
+     * @param key The header key.
+     * @return The value, or null if the header is absent.
+     */
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    /**
+     * Gets the command that followed the headers.
+     *
+     * @return The command body.
+     */
+    public String getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram class records operation latencies into power-of-two buckets.
+ * Every bucket is a striped LongAdder, so concurrent recordings from many handler threads never block each other.
+ * Percentiles are approximate and reported as the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 64; // One bucket per bit of a long nanosecond value
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS]; // Bucket i counts samples in [2^(i-1), 2^i) nanoseconds
+    private final LongAdder count = new LongAdder(); // Number of recorded samples
+    private final LongAdder totalNanos = new LongAdder(); // Sum of all recorded samples
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0); // Largest recorded sample
+
+    /**
+     * Constructor to create an empty histogram.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a single latency sample.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Gets the number of recorded samples.
+     *
+     * @return The sample count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets the mean latency in microseconds.
+     *
+     * @return The mean latency, or 0 if nothing was recorded.
+     */
+    public long getMeanMicros() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : totalNanos.sum() / samples / 1000;
+    }
+
+    /**
+     * Gets the largest recorded latency in microseconds.
+     *
+     * @return The maximum latency.
+     */
+    public long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * Gets the approximate latency at the given percentile in microseconds.
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The upper bound of the bucket containing the percentile.
+     */
+    public long getPercentileMicros(double percentile) {
+        long samples = count.sum();
+        if (samples == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(samples * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target) {
+                return Math.min(1L << Math.min(i, 62), maxNanos.get()) / 1000;
+            }
+        }
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log class is a small asynchronous logging layer used by the NameNode and DataNodes.
+ * Log statements below the configured level return after a single comparison and never build their message.
+ * Enabled statements are formatted on the calling thread, truncating long arguments such as append payloads,
+ * and handed to a lock-free ring buffer that a background thread drains to standard output.
+ *
+ * The level is read from the "dfs.log.level" system property (ERROR, WARN, INFO or DEBUG, default INFO),
+ * the maximum length of a logged argument from "dfs.log.maxPayload" (default 256 characters)
+ * and the ring buffer capacity from "dfs.log.bufferSize" (default 8192 messages).
+ */
+public final class Log {
+
+    /**
+     * Severity of a log statement, from most to least severe.
+     */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final int MAX_PAYLOAD = Integer.getInteger("dfs.log.maxPayload", 256);
+    private static final RingBuffer<String> buffer = new RingBuffer<>(Integer.getInteger("dfs.log.bufferSize", 8192));
+    private static final LongAdder dropped = new LongAdder(); // Messages rejected because the buffer was full
+    private static final OutputStream output = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+    private static volatile int threshold = parseLevel(System.getProperty("dfs.log.level", "INFO")).ordinal();
+
+    static {
+        Thread writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+        } catch (IllegalStateException e) {
+            // Loaded while the JVM is already shutting down, nothing left to flush at exit
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Changes the level at runtime.
+     *
+     * @param level The least severe level that is still logged.
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Checks if statements at the given level are logged.
+     *
+     * @param level The level to check.
+     * @return True if the level is enabled.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    /**
+     * Checks if debug statements are logged.
+     *
+     * @return True if the DEBUG level is enabled.
+     */
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.ordinal() <= threshold;
+    }
+
+    /**
+     * Logs a message at DEBUG level.
+     *
+     * @param message The message.
+     */
+    public static void debug(String message) {
+        if (Level.DEBUG.ordinal() <= threshold) {
+            enqueue(Level.DEBUG, message);
+        }
+    }
+
+    /**
+     * Logs a message at DEBUG level, substituting the argument for the "{}" placeholder.
+     *
+     * @param format The message with a placeholder.
+     * @param arg The argument, truncated to the maximum payload length.
+     */
+    public static void debug(String format, Object arg) {
+        if (Level.DEBUG.ordinal() <= threshold) {
+            enqueue(Level.DEBUG, format(format, arg, null));
+        }
+    }
+
+    /**
+     * Logs a message at DEBUG level, substituting the arguments for the "{}" placeholders.
+     *
+     * @param format The message with two placeholders.
+     * @param arg1 The first argument, truncated to the maximum payload length.
+     * @param arg2 The second argument, truncated to the maximum payload length.
+     */
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (Level.DEBUG.ordinal() <= threshold) {
+            enqueue(Level.DEBUG, format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs a message at INFO level.
+     *
+     * @param message The message.
+     */
+    public static void info(String message) {
+        if (Level.INFO.ordinal() <= threshold) {
+            enqueue(Level.INFO, message);
+        }
+    }
+
+    /**
+     * Logs a message at INFO level, substituting the argument for the "{}" placeholder.
+     *
+     * @param format The message with a placeholder.
+     * @param arg The argument, truncated to the maximum payload length.
+     */
+    public static void info(String format, Object arg) {
+        if (Level.INFO.ordinal() <= threshold) {
+            enqueue(Level.INFO, format(format, arg, null));
+        }
+    }
+
+    /**
+     * Logs a message at INFO level, substituting the arguments for the "{}" placeholders.
+     *
+     * @param format The message with two placeholders.
+     * @param arg1 The first argument, truncated to the maximum payload length.
+     * @param arg2 The second argument, truncated to the maximum payload length.
+     */
+    public static void info(String format, Object arg1, Object arg2) {
+        if (Level.INFO.ordinal() <= threshold) {
+            enqueue(Level.INFO, format(format, arg1, arg2));
+        }
+    }
+
+    /**
+     * Logs a message at WARN level.
+     *
+     * @param message The message.
+     */
+    public static void warn(String message) {
+        if (Level.WARN.ordinal() <= threshold) {
+            enqueue(Level.WARN, message);
+        }
+    }
+
+    /**
+     * Logs a message at WARN level, substituting the argument for the "{}" placeholder.
+     *
+     * @param format The message with a placeholder.
+     * @param arg The argument, truncated to the maximum payload length.
+     */
+    public static void warn(String format, Object arg) {
+        if (Level.WARN.ordinal() <= threshold) {
+            enqueue(Level.WARN, format(format, arg, null));
+        }
+    }
+
+    /**
+     * Logs a message at ERROR level.
+     *
+     * @param message The message.
+     */
+    public static void error(String message) {
+        enqueue(Level.ERROR, message);
+    }
+
+    /**
+     * Logs a message at ERROR level, substituting the argument for the "{}" placeholder.
+     *
+     * @param format The message with a placeholder.
+     * @param arg The argument, truncated to the maximum payload length.
+     */
+    public static void error(String format, Object arg) {
+        enqueue(Level.ERROR, format(format, arg, null));
+    }
+
+    /**
+     * Logs an error together with the stack trace of its cause.
+     *
+     * @param message The error message.
+     * @param cause The exception that caused the error.
+     */
+    public static void error(String message, Throwable cause) {
+        StringWriter trace = new StringWriter();
+        cause.printStackTrace(new PrintWriter(trace));
+        enqueue(Level.ERROR, message + System.lineSeparator() + trace.toString().trim());
+    }
+
+    /**
+     * Shortens a value to the configured maximum payload length.
+     *
+     * @param value The value to shorten.
+     * @return The value itself, or its prefix followed by the number of omitted characters.
+     */
+    public static String truncate(String value) {
+        if (value == null || value.length() <= MAX_PAYLOAD) {
+            return value;
+        }
+        return value.substring(0, MAX_PAYLOAD) + "...(+" + (value.length() - MAX_PAYLOAD) + " chars)";
+    }
+
+    /**
+     * Substitutes up to two "{}" placeholders with the truncated string forms of the arguments.
+     */
+    private static String format(String format, Object arg1, Object arg2) {
+        StringBuilder builder = new StringBuilder(format.length() + 64);
+        Object[] args = {arg1, arg2};
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while (argIndex < 2 && (placeholder = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, placeholder).append(truncate(String.valueOf(args[argIndex++])));
+            start = placeholder + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
+    /**
+     * Stamps the message and hands it to the writer thread, counting it as dropped if the buffer is full.
+     */
+    private static void enqueue(Level level, String message) {
+        String line = TIME_FORMAT.format(Instant.now()) + " [" + level + "] [" + Thread.currentThread().getName() + "] " + message;
+        if (!buffer.offer(line)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Body of the background writer thread.
+     */
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) {
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    /**
+     * Writes every queued message and flushes the output once.
+     *
+     * @return True if at least one message was written.
+     */
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        try {
+            String line;
+            while ((line = buffer.poll()) != null) {
+                output.write(line.getBytes(StandardCharsets.UTF_8));
+                output.write('\n');
+                wrote = true;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                output.write(("[WARN] Log buffer full, dropped " + lost + " messages\n").getBytes(StandardCharsets.UTF_8));
+                wrote = true;
+            }
+            if (wrote) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return wrote;
+    }
+
+    /**
+     * Parses a level name, falling back to INFO for unknown names.
+     */
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MemoryTier class keeps copies of hot blocks of a DataNode in off-heap memory in front of the disk tier.
+ * The tier is write-through: every block stays on disk as before, so total capacity is that of the disk and the
+ * durability policy is unaffected, while reads of cached blocks skip the file system entirely.
+ *
+ * The memory is allocated once, as direct buffers split into slots of one block each, and the slots of demoted blocks
+ * are reused, so caching a block allocates nothing. Blocks larger than a slot are not cached. Readers get a read-only
+ * view of the slot rather than a copy, which stays valid while they hold the lock of the block.
+ *
+ * Written blocks and blocks read often enough are promoted into the tier. A background thread periodically halves the
+ * access counts of all blocks, demotes cached blocks that have not been read since, and demotes the coldest blocks
+ * when the tier is above its high watermark. Callers hold the lock of the block when adding or reading a copy, and
+ * demotion takes the write lock, so a block is never demoted under a reader or writer.
+ */
+class MemoryTier extends Thread {
+    private static final double HIGH_WATERMARK = 0.9; // Fill level that triggers demotion of the coldest blocks
+    private static final double LOW_WATERMARK = 0.75; // Fill level demotion brings the tier back to
+
+    private final DataNode dataNode; // DataNode whose blocks are cached
+    private final int slotBytes; // Size of a slot, the largest block that can be cached
+    private final int slotCount; // Number of slots, the most blocks held at once
+    private final int slotsPerArena; // Slots in each direct buffer, which is limited to 2 GB
+    private final ByteBuffer[] arenas; // Direct buffers holding the slots, outside the Java heap
+    private final int[] freeSlots; // Stack of unused slots, guarded by this
+    private int freeCount; // Number of unused slots, guarded by this
+    private final long intervalMillis; // How often access counts decay and cold blocks are demoted
+    private final Map<Integer, CachedBlock> blocks = new ConcurrentHashMap<>(); // Cached blocks by block ID
+    private long usedBytes; // Bytes held, guarded by this
+
+    /**
+     * A block held in the tier.
+     */
+    private static class CachedBlock {
+        private final int blockId;
+        private final Block block;
+        private final int slot; // Slot holding the contents
+        private final int length; // Length of the contents in bytes
+
+        private CachedBlock(int blockId, Block block, int slot, int length) {
+            this.blockId = blockId;
+            this.block = block;
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Constructor to create the memory tier of a DataNode, allocating all of its memory.
+     *
+     * @param dataNode The DataNode whose blocks are cached.
+     * @param capacityBytes The maximum number of bytes held.
+     * @param slotBytes The size of a slot, the largest block that can be cached.
+     * @param intervalMillis How often access counts decay and cold blocks are demoted.
+     */
+    public MemoryTier(DataNode dataNode, long capacityBytes, int slotBytes, long intervalMillis) {
+        super("memory-tier");
+        this.dataNode = dataNode;
+        this.slotBytes = slotBytes;
+        this.slotCount = (int) Math.min(capacityBytes / slotBytes, Integer.MAX_VALUE);
+        this.slotsPerArena = Integer.MAX_VALUE / slotBytes;
+        this.arenas = new ByteBuffer[(slotCount + slotsPerArena - 1) / slotsPerArena];
+        for (int i = 0; i < arenas.length; i++) {
+            arenas[i] = ByteBuffer.allocateDirect(Math.min(slotsPerArena, slotCount - i * slotsPerArena) * slotBytes);
+        }
+        this.freeSlots = new int[slotCount];
+        for (int slot = slotCount - 1; slot >= 0; slot--) {
+            freeSlots[freeCount++] = slot; // Lowest slots first
+        }
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+        dataNode.getMetrics().registerGauge("tier.memory.bytes", this::getUsedBytes);
+        dataNode.getMetrics().registerGauge("tier.memory.blocks", blocks::size);
+    }
+
+    /**
+     * Gets the cached contents of a block. The caller holds the read or write lock of the block, and must be done with
+     * the contents before releasing it, as the slot is reused once the block is demoted.
+     *
+     * @param blockId The block ID.
+     * @return A read-only view of the contents in off-heap memory, or null if the block is not in the tier.
+     */
+    public ByteBuffer get(int blockId) {
+        CachedBlock cached = blocks.get(blockId);
+        if (cached == null) {
+            dataNode.getMetrics().increment("tier.memory.misses");
+            return null;
+        }
+        dataNode.getMetrics().increment("tier.memory.hits");
+        return slot(cached.slot, cached.length).asReadOnlyBuffer();
+    }
+
+    /**
+     * Adds or replaces the cached contents of a block. The caller holds the write lock of the block, or its read lock
+     * to promote a block that is not cached, in which case a copy promoted meanwhile by another reader is kept.
+     * If the tier is full, a block read less often than this one is demoted to make room.
+     *
+     * @param blockId The block ID.
+     * @param block The block.
+     * @param data The contents of the block.
+     * @return True if the contents were cached, false if the tier has no room for them.
+     */
+    public boolean put(int blockId, Block block, byte[] data) {
+        if (data.length > slotBytes) {
+            dataNode.getMetrics().increment("tier.memory.tooLarge");
+            return false;
+        }
+        boolean writer = block.isWriteLockedByCurrentThread();
+        CachedBlock previous;
+        int slot;
+        synchronized (this) {
+            previous = blocks.get(blockId);
+            if (previous != null && !writer) {
+                return true; // Readers may be using that copy
+            }
+            if (previous != null) {
+                slot = previous.slot; // Nobody else can be using it under the write lock
+            } else {
+                if (freeCount == 0) {
+                    makeRoom(blockId, block.getAccessCount());
+                }
+                if (freeCount == 0) {
+                    dataNode.getMetrics().increment("tier.memory.full");
+                    return false;
+                }
+                slot = freeSlots[--freeCount];
+            }
+        }
+        slot(slot, data.length).put(data); // The slot is not visible to anyone else until published
+        synchronized (this) {
+            if (previous == null && blocks.containsKey(blockId)) {
+                freeSlots[freeCount++] = slot; // Another reader promoted the block meanwhile
+                return true;
+            }
+            usedBytes += data.length - (previous == null ? 0 : previous.length);
+            blocks.put(blockId, new CachedBlock(blockId, block, slot, data.length));
+        }
+        if (previous == null) {
+            dataNode.getMetrics().increment("tier.promotions");
+        }
+        return true;
+    }
+
+    /**
+     * Drops the cached contents of a block and frees its slot. The caller holds the write lock of the block.
+     *
+     * @param blockId The block ID.
+     */
+    public synchronized void remove(int blockId) {
+        CachedBlock cached = blocks.remove(blockId);
+        if (cached != null) {
+            usedBytes -= cached.length;
+            freeSlots[freeCount++] = cached.slot;
+        }
+    }
+
+    /**
+     * Gets a view of the first bytes of a slot.
+     *
+     * @param slot The slot.
+     * @param length The number of bytes.
+     * @return The view, sharing the memory of the slot.
+     */
+    private ByteBuffer slot(int slot, int length) {
+        return arenas[slot / slotsPerArena].slice((slot % slotsPerArena) * slotBytes, length);
+    }
+
+    /**
+     * Demotes the least read block if it is read less often than a block being promoted, freeing a slot.
+     * Blocks in use are skipped rather than waited for, since the caller already holds the lock of another block.
+     *
+     * @param blockId The block being promoted.
+     * @param accessCount The recent read count of the block being promoted.
+     */
+    private synchronized void makeRoom(int blockId, int accessCount) {
+        for (CachedBlock cached : coldestFirst()) {
+            if (freeCount > 0 || cached.block.getAccessCount() >= accessCount) {
+                break;
+            }
+            if (cached.blockId == blockId || !cached.block.getWriteLock().tryLock()) {
+                continue;
+            }
+            try {
+                remove(cached.blockId);
+                dataNode.getMetrics().increment("tier.demotions");
+            } finally {
+                cached.block.getWriteLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the cached blocks ordered by their recent read count, least read first.
+     *
+     * @return The cached blocks.
+     */
+    private List<CachedBlock> coldestFirst() {
+        Map<CachedBlock, Integer> accessCounts = new HashMap<>(); // Taken once, reads keep changing the live counts
+        for (CachedBlock cached : blocks.values()) {
+            accessCounts.put(cached, cached.block.getAccessCount());
+        }
+        List<CachedBlock> candidates = new ArrayList<>(accessCounts.keySet());
+        candidates.sort(Comparator.comparingInt(accessCounts::get));
+        return candidates;
+    }
+
+    /**
+     * Gets the number of bytes held.
+     *
+     * @return The bytes held.
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Gets the fraction of slots holding a block.
+     *
+     * @return The fill level between 0 and 1.
+     */
+    private synchronized double getFillLevel() {
+        return slotCount == 0 ? 0 : (double) (slotCount - freeCount) / slotCount;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dataNode.decayAccessCounts();
+            demoteColdBlocks();
+        }
+    }
+
+    /**
+     * Demotes cached blocks that were not read recently, then the least read ones while the tier is above its high watermark.
+     */
+    private void demoteColdBlocks() {
+        boolean overfull = getFillLevel() > HIGH_WATERMARK;
+        for (CachedBlock cached : coldestFirst()) {
+            boolean cold = cached.block.getAccessCount() == 0;
+            if (!cold && !(overfull && getFillLevel() > LOW_WATERMARK)) {
+                break;
+            }
+            cached.block.getWriteLock().lock();
+            try {
+                // Only demote the copy that was chosen, a writer may have replaced it in the meantime
+                if (blocks.get(cached.blockId) == cached) {
+                    remove(cached.blockId);
+                    dataNode.getMetrics().increment("tier.demotions");
+                }
+            } finally {
+                cached.block.getWriteLock().unlock();
+            }
+        }
+    }
+}
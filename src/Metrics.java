@@ -0,0 +1,200 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Metrics class collects counters, gauges and latency histograms for a NameNode or DataNode process.
+ * Counters are striped LongAdders so recording on the request path never contends on a lock.
+ * All values are exposed over JMX as read-only attributes and as a single line for the STATS command.
+ */
+public class Metrics implements DynamicMBean {
+    private final String name; // Name of the process these metrics belong to, e.g. "DataNode-65530"
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>(); // Monotonic and up/down counters
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>(); // Per-operation latencies
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>(); // Values sampled on demand
+
+    /**
+     * Constructor to create an empty metrics registry.
+     *
+     * @param name The name of the process these metrics belong to.
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Increments the specified counter by one.
+     *
+     * @param counter The counter name.
+     */
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * Adds the specified delta to a counter, creating it on first use.
+     *
+     * @param counter The counter name.
+     * @param delta The amount to add, may be negative for up/down counters.
+     */
+    public void add(String counter, long delta) {
+        LongAdder adder = counters.get(counter);
+        if (adder == null) {
+            adder = counters.computeIfAbsent(counter, key -> new LongAdder());
+        }
+        adder.add(delta);
+    }
+
+    /**
+     * Adds the number of bytes a line takes on the wire in UTF-8 to a counter, without encoding it.
+     *
+     * @param counter The counter name.
+     * @param line The line sent or received, without its line terminator.
+     */
+    public void addBytes(String counter, String line) {
+        long bytes = line.length();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= 0x800) {
+                bytes += Character.isSurrogate(c) ? 1 : 2; // A surrogate pair takes 4 bytes for its 2 chars
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        add(counter, bytes);
+    }
+
+    /**
+     * Records a latency sample for the specified operation.
+     *
+     * @param operation The operation name.
+     * @param nanos The latency in nanoseconds.
+     */
+    public void recordLatency(String operation, long nanos) {
+        LatencyHistogram histogram = latencies.get(operation);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(operation, key -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Registers a gauge whose value is sampled whenever metrics are read.
+     *
+     * @param gauge The gauge name.
+     * @param supplier The supplier of the current value.
+     */
+    public void registerGauge(String gauge, LongSupplier supplier) {
+        gauges.put(gauge, supplier);
+    }
+
+    /**
+     * Takes a point-in-time snapshot of all metrics.
+     * Histograms are flattened into count, mean, p50, p99 and max entries.
+     *
+     * @return The metric values sorted by name.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            values.put(entry.getKey() + ".count", histogram.getCount());
+            values.put(entry.getKey() + ".meanMicros", histogram.getMeanMicros());
+            values.put(entry.getKey() + ".p50Micros", histogram.getPercentileMicros(50));
+            values.put(entry.getKey() + ".p99Micros", histogram.getPercentileMicros(99));
+            values.put(entry.getKey() + ".maxMicros", histogram.getMaxMicros());
+        }
+        return values;
+    }
+
+    /**
+     * Formats all metrics as a single line of space separated key=value pairs.
+     *
+     * @return The formatted metrics, suitable as a STATS response.
+     */
+    public String format() {
+        StringBuilder builder = new StringBuilder(name);
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     */
+    public void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("DistributedFileSystem:type=Metrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            Log.error("Unable to register metrics MBean for: " + name, e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> values = snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (values.containsKey(attribute)) {
+                list.add(new Attribute(attribute, values.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics expose no operations: " + actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String key : snapshot().keySet()) {
+            attributes.add(new MBeanAttributeInfo(key, Long.class.getName(), key, true, false, false));
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Metrics for " + name,
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
@@ -3,31 +3,116 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.SocketException;
 import java.io.PrintWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * NameNode class acts as the central coordinator in the Distributed File System.
  * It manages metadata about file locations and coordinates communication with DataNode instances to handle client requests for reading and appending data.
  * 
+ * Requests are admitted into a FairScheduler that serves clients fairly by their "@client" header (or remote address).
+ * The worker count, queue capacity, client weights and connection limit are set with the "dfs.namenode.workers" (32),
+ * "dfs.namenode.queueCapacity" (1024), "dfs.namenode.clientWeights" (e.g. "etl:4,web:1") and
+ * "dfs.namenode.maxConnections" (256) system properties. Overload is answered with "ERROR: Server busy".
+ * A BlockBalancer spreads blocks evenly over the DataNodes in the background if "dfs.balancer.enabled" is true.
+ * In a federation only the first NameNode of the partition table balances, see BlockBalancer.
+ * 
+ * "DELETE <file>" removes a file and "TRUNCATE <file> <blocks>" keeps only its first blocks. Both only change the file
+ * map and hand the dropped blocks to a BlockReclaimer, which frees them on their DataNodes in batches after a grace
+ * period, so they take the same time whatever the size of the file.
+ * 
+ * The namespace can be federated over several NameNodes that share the same DataNodes. Each file belongs to one
+ * NameNode according to a PartitionTable read from "dfs.namenodes", and requests for files owned elsewhere are answered
+ * with "MOVED host:port". This NameNode identifies itself as "dfs.namenode.address" ("127.0.0.1:<port>").
+ * To add a NameNode, start it with the current table, then send "PARTITIONS <new table>" to every NameNode.
+ * Each NameNode then hands the files it no longer owns to their new owners in the background, at most
+ * "dfs.federation.migrateRatePerSec" (200) files per second, and a new owner pulls any file it is asked about before
+ * its turn. A migration is complete once a NameNode has handed over its own files and every NameNode of the previous
+ * table reports that it holds none for it any more, which is logged as "Namespace migration complete". Until then
+ * PARTITIONS is answered with "ERROR: Namespace migration in progress", and a removed NameNode must keep running.
+ * 
+ * PARTITIONS and the commands NameNodes send each other (EXPORT, IMPORT, MIGRATE and PENDING) are only accepted from
+ * the hosts of the NameNodes in the partition tables, and with the "@secret" header set to "dfs.federation.secret"
+ * if that property is set. They are answered on the connection thread rather than by the FairScheduler workers, so a
+ * worker waiting on another NameNode never waits on a worker of that NameNode in turn.
+ * 
  * Author: Umar Mohammad
  */
 public class NameNode {
-    private static final int MB = 4194304; // 4MB size for segmenting data
-    private static final Map<String, List<Pair>> fileToBlockMap = new HashMap<>(); // Map that stores the filename and the list of data blocks
-    private static final Object mapLock = new Object(); // Lock for synchronizing access to the map
+    private static final int MB = Integer.getInteger("dfs.blockSize", 4194304); // Block size for segmenting data, 4MB by default
+    private final CompactBlockMap fileToBlockMap = new CompactBlockMap(); // Map that stores the filename and the list of data blocks
+    private final Object mapLock = new Object(); // Lock for synchronizing access to the map
+    static final int DATA_NODE_COUNT = 3; // DataNodes D1 to D3 listen on consecutive ports
+    private static final int FIRST_DATA_NODE_PORT = 65530; // Port of D1
+    private static final String FEDERATION_SECRET = System.getProperty("dfs.federation.secret"); // Null if peers are trusted by host
 
     private ServerSocket serverSocket;
-    private List<NameNodeHandler> handlers = new ArrayList<>();
+    private final Set<NameNodeHandler> handlers = ConcurrentHashMap.newKeySet();
     private volatile boolean running = true;
+    private final Metrics metrics = new Metrics("NameNode"); // Operation counters, latencies and lock wait times
+    private final int maxConnections = Integer.getInteger("dfs.namenode.maxConnections", 256);
+    private final AtomicInteger openConnections = new AtomicInteger(); // Connections with a running handler
+    private final FairScheduler scheduler = new FairScheduler(Integer.getInteger("dfs.namenode.workers", 32),
+            Integer.getInteger("dfs.namenode.queueCapacity", 1024),
+            FairScheduler.parseWeights(System.getProperty("dfs.namenode.clientWeights", "")), metrics);
+    private final BlockReclaimer reclaimer = new BlockReclaimer(fileToBlockMap, metrics); // Frees dropped blocks
+    private final String address; // This NameNode as "host:port", the way partition tables list it
+    private volatile PartitionTable partitionTable = PartitionTable.fromProperty(); // Owner of every file
+    private final BlockBalancer balancer; // Moves blocks from full DataNodes to empty ones, if enabled
+    private volatile PartitionTable previousTable; // Owners before the last repartition, null once it is migrated
+    private final Set<String> imported = ConcurrentHashMap.newKeySet(); // Files pulled from their previous owner, cleared once migrated
+    private final Map<String, CompletableFuture<Boolean>> pulls = new ConcurrentHashMap<>(); // Pulls in progress by filename
+    private Thread migrator; // Hands over files owned elsewhere, null once done, guarded by this
 
     public static void main(String[] args) {
-        NameNode server = new NameNode();
-        server.start(5558);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 5558;
+        Tracer.setService("namenode-" + port);
+        NameNode server = new NameNode(System.getProperty("dfs.namenode.address", "127.0.0.1:" + port));
+        server.start(port);
+    }
+
+    /**
+     * Constructor to create a NameNode.
+     * 
+     * @param address The address of this NameNode as "host:port", the way partition tables list it.
+     */
+    public NameNode(String address) {
+        this.address = address;
+        balancer = new BlockBalancer(fileToBlockMap, mapLock, reclaimer,
+                () -> partitionTable.getNameNodes().get(0).equals(address), metrics);
+        metrics.registerGauge("namespace.files", () -> {
+            synchronized (mapLock) {
+                return fileToBlockMap.size();
+            }
+        });
+        metrics.registerGauge("namespace.blocks", () -> {
+            synchronized (mapLock) {
+                return fileToBlockMap.getBlockCount();
+            }
+        });
+    }
+
+    /**
+     * Gets the port a DataNode listens on.
+     * 
+     * @param dataNodeId The DataNode identifier, e.g. "D1".
+     * @return The port number.
+     */
+    static int getDataNodePort(String dataNodeId) {
+        return FIRST_DATA_NODE_PORT + Integer.parseInt(dataNodeId.substring(1)) - 1;
     }
 
     /**
@@ -38,23 +123,53 @@ public class NameNode {
     public void start(int port) {
         try {
             serverSocket = new ServerSocket(port);
-            System.out.println("[DEBUG] NameNode started on port: " + port);
+            metrics.registerMBean();
+            reclaimer.start();
+            if (Boolean.getBoolean("dfs.balancer.enabled")) {
+                balancer.start();
+            }
+            Log.info("NameNode started on port: {}", port);
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
+                    if (openConnections.incrementAndGet() > maxConnections) {
+                        openConnections.decrementAndGet();
+                        rejectConnection(clientSocket);
+                        continue;
+                    }
                     NameNodeHandler handler = new NameNodeHandler(clientSocket);
                     handlers.add(handler);
                     handler.start();
                 } catch (SocketException e) {
                     if (!running) {
-                        System.out.println("[DEBUG] Server socket closed.");
+                        Log.info("Server socket closed.");
                     } else {
                         throw e;
                     }
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("NameNode server error", e);
+        }
+    }
+
+    /**
+     * Turns away a connection beyond the connection limit.
+     * 
+     * @param clientSocket The rejected connection.
+     */
+    private void rejectConnection(Socket clientSocket) {
+        metrics.increment("connections.rejected");
+        try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            out.println("ERROR: Server busy");
+        } catch (IOException e) {
+            Log.debug("Unable to reject connection: {}", e.getMessage());
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                Log.error("Error while closing rejected connection", e);
+            }
         }
     }
 
@@ -63,15 +178,18 @@ public class NameNode {
      */
     public void initiateShutdown() {
         running = false;
+        scheduler.shutdown();
+        balancer.shutdown();
+        reclaimer.shutdown();
         try {
             serverSocket.close();
             for (NameNodeHandler handler : handlers) {
                 handler.shutdown();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Error while shutting down the NameNode", e);
         }
-        System.out.println("[DEBUG] NameNode has been shut down.");
+        Log.info("NameNode has been shut down.");
     }
 
     /**
@@ -81,58 +199,614 @@ public class NameNode {
         initiateShutdown();
     }
 
+    /**
+     * Checks whether a request for a file can be served by this NameNode, pulling the file from its previous owner first
+     * if the namespace was repartitioned. Reads of a file this NameNode no longer owns are still served until the file
+     * has been handed over, since until then the local copy is the only one.
+     * 
+     * @param filename The name of the file.
+     * @param modifies Whether the request changes the file or its ownership.
+     * @return Null if the request can be served here, otherwise the response to send instead.
+     */
+    private String checkOwnership(String filename, boolean modifies) {
+        String owner = partitionTable.ownerOf(filename);
+        if (!owner.equals(address)) {
+            if (!modifies) {
+                synchronized (mapLock) {
+                    if (fileToBlockMap.contains(filename)) {
+                        return null;
+                    }
+                }
+            }
+            metrics.increment("federation.redirects");
+            return "MOVED " + owner;
+        }
+        return ensureImported(filename) ? null : "ERROR: Namespace migration in progress";
+    }
+
+    /**
+     * Pulls a file from the NameNode that owned it before the last repartition, unless that already happened.
+     * Concurrent requests for the same file share one pull.
+     * 
+     * @param filename The name of the file.
+     * @return True if the file is up to date here, false if its previous owner could not hand it over yet.
+     */
+    private boolean ensureImported(String filename) {
+        PartitionTable previous = previousTable;
+        if (previous == null || imported.contains(filename)) {
+            return true;
+        }
+        String previousOwner = previous.ownerOf(filename);
+        if (previousOwner.equals(address)) {
+            return true;
+        }
+        CompletableFuture<Boolean> pull = new CompletableFuture<>();
+        CompletableFuture<Boolean> inProgress = pulls.putIfAbsent(filename, pull);
+        if (inProgress != null) {
+            return inProgress.join();
+        }
+        boolean pulled = false;
+        try {
+            String response = callNameNode(previousOwner, "EXPORT " + filename);
+            if (response != null && response.startsWith("BLOCKS")) {
+                long[] blockList = decodeBlocks(response.substring("BLOCKS".length()).trim());
+                synchronized (mapLock) {
+                    long[] current = fileToBlockMap.remove(filename);
+                    if (blockList.length > 0 || current != null) {
+                        fileToBlockMap.append(filename, blockList);
+                    }
+                    if (current != null) {
+                        fileToBlockMap.append(filename, current);
+                    }
+                }
+                imported.add(filename);
+                if (blockList.length > 0) {
+                    metrics.increment("federation.imported");
+                }
+                pulled = true;
+            } else {
+                Log.warn("Previous owner did not hand over {}", filename + ": " + response);
+            }
+        } catch (IOException e) {
+            Log.warn("Unable to pull {} from its previous owner", filename + ": " + e.getMessage());
+        } finally {
+            pulls.remove(filename);
+            pull.complete(pulled);
+        }
+        return pulled;
+    }
+
+    /**
+     * Gives up a file that is now owned by another NameNode.
+     * 
+     * @param filename The name of the file.
+     * @return "BLOCKS" followed by the blocks of the file, none if it does not exist here.
+     */
+    private String exportFile(String filename) {
+        if (partitionTable.ownerOf(filename).equals(address)) {
+            return "ERROR: Not moved"; // This NameNode has not been told about the new owner yet
+        }
+        long[] blockList;
+        synchronized (mapLock) {
+            blockList = fileToBlockMap.remove(filename);
+        }
+        if (blockList == null) {
+            return "BLOCKS";
+        }
+        metrics.increment("federation.exported");
+        return "BLOCKS " + encodeBlocks(blockList);
+    }
+
+    /**
+     * Adds blocks to the end of a file owned by this NameNode.
+     * 
+     * @param filename The name of the file.
+     * @param encodedBlocks The blocks as written by encodeBlocks.
+     */
+    private void importBlocks(String filename, String encodedBlocks) {
+        long[] blockList = decodeBlocks(encodedBlocks);
+        synchronized (mapLock) {
+            fileToBlockMap.append(filename, blockList);
+        }
+    }
+
+    /**
+     * Deletes a file, handing its blocks to the reclaimer.
+     * 
+     * @param filename The name of the file.
+     * @return The response to the DELETE request.
+     */
+    private String deleteFile(String filename) {
+        long[] blockList;
+        synchronized (mapLock) {
+            blockList = fileToBlockMap.remove(filename);
+        }
+        if (blockList == null) {
+            return "ERROR: No such file";
+        }
+        reclaimer.reclaim(blockList);
+        return "COMPLETE";
+    }
+
+    /**
+     * Drops the blocks of a file after the given number, handing them to the reclaimer.
+     * 
+     * @param filename The name of the file.
+     * @param length The number of blocks to keep.
+     * @return The response to the TRUNCATE request.
+     */
+    private String truncateFile(String filename, int length) {
+        long[] blockList;
+        synchronized (mapLock) {
+            blockList = fileToBlockMap.truncate(filename, length);
+        }
+        if (blockList == null) {
+            return "ERROR: No such file";
+        }
+        if (blockList.length > 0) {
+            reclaimer.reclaim(blockList);
+        }
+        return "COMPLETE";
+    }
+
+    /**
+     * Switches to a new partition table and starts handing over the files owned elsewhere.
+     * 
+     * @param table The new partition table.
+     * @return The response to the PARTITIONS request.
+     */
+    private synchronized String repartition(PartitionTable table) {
+        if (table.toString().equals(partitionTable.toString())) {
+            return "COMPLETE"; // Sent again, e.g. by an administrator retrying
+        }
+        if (migrator != null) {
+            return "ERROR: Namespace migration in progress";
+        }
+        PartitionTable previous = partitionTable;
+        previousTable = previous;
+        partitionTable = table;
+        Log.info("Namespace partitioned over: {}", table);
+        migrator = new Thread(() -> migrateForeignFiles(previous, table), "namespace-migrator");
+        migrator.setDaemon(true);
+        migrator.start();
+        return "COMPLETE";
+    }
+
+    /**
+     * Asks the owner of every file held here but owned elsewhere to pull it, until no such file is left, then waits
+     * until no other NameNode holds files for this one and forgets the previous table.
+     * Files whose owner cannot take them yet are retried every second.
+     * 
+     * @param previous The partition table before the repartition.
+     * @param table The new partition table.
+     */
+    private void migrateForeignFiles(PartitionTable previous, PartitionTable table) {
+        long pauseNanos = 1_000_000_000L / Math.max(1, Integer.getInteger("dfs.federation.migrateRatePerSec", 200));
+        while (running) {
+            List<String> foreign = new ArrayList<>();
+            synchronized (mapLock) {
+                for (String filename : fileToBlockMap.getFilenames()) {
+                    if (!table.ownerOf(filename).equals(address)) {
+                        foreign.add(filename);
+                    }
+                }
+            }
+            if (foreign.isEmpty() && isHandedOver(previous, table)) {
+                synchronized (this) {
+                    previousTable = null;
+                    imported.clear();
+                    migrator = null;
+                }
+                Log.info("Namespace migration complete");
+                return;
+            }
+            for (String filename : foreign) {
+                try {
+                    callNameNode(table.ownerOf(filename), "MIGRATE " + filename);
+                } catch (IOException e) {
+                    Log.warn("Unable to hand over {}", filename + ": " + e.getMessage());
+                }
+                LockSupport.parkNanos(pauseNanos);
+            }
+            LockSupport.parkNanos(1_000_000_000L);
+        }
+    }
+
+    /**
+     * Checks whether every other NameNode of the previous table has handed over the files this NameNode now owns.
+     * 
+     * @param previous The partition table before the repartition.
+     * @param table The new partition table.
+     * @return True if no other NameNode holds files for this one any more.
+     */
+    private boolean isHandedOver(PartitionTable previous, PartitionTable table) {
+        for (String nameNode : previous.getNameNodes()) {
+            if (nameNode.equals(address)) {
+                continue;
+            }
+            try {
+                String response = callNameNode(nameNode, "PENDING " + address + " " + previous + " " + table);
+                if (!"PENDING 0".equals(response)) {
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.warn("Unable to ask {} for files still to hand over", nameNode + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the files held here that another NameNode owns after a repartition.
+     * A NameNode already past that table finished handing over before it accepted the next one, so it holds none.
+     * 
+     * @param nameNode The NameNode asking, as "host:port".
+     * @param previousSpec The partition table it had before the repartition.
+     * @param tableSpec The partition table it has now.
+     * @return "PENDING" followed by the number of files, or an error if this NameNode was not repartitioned yet.
+     */
+    private String countPending(String nameNode, String previousSpec, String tableSpec) {
+        PartitionTable table = partitionTable;
+        if (!table.toString().equals(tableSpec)) {
+            return table.toString().equals(previousSpec) ? "ERROR: Not repartitioned" : "PENDING 0";
+        }
+        int pending = 0;
+        synchronized (mapLock) {
+            for (String filename : fileToBlockMap.getFilenames()) {
+                if (table.ownerOf(filename).equals(nameNode)) {
+                    pending++;
+                }
+            }
+        }
+        return "PENDING " + pending;
+    }
+
+    /**
+     * Sends one request to another NameNode on its own connection.
+     * 
+     * @param address The NameNode address as "host:port".
+     * @param request The request, which must be answered with a single line.
+     * @return The response line.
+     * @throws IOException If the NameNode cannot be reached or does not answer.
+     */
+    static String callNameNode(String address, String request) throws IOException {
+        try (Socket socket = new Socket(PartitionTable.getHost(address), PartitionTable.getPort(address));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.setSoTimeout(30000);
+            out.println(FEDERATION_SECRET == null ? request : Headers.prepend("secret", FEDERATION_SECRET, request));
+            String response = in.readLine();
+            out.println(".");
+            return response;
+        }
+    }
+
+    /**
+     * Writes blocks as "D1:5,D2:7".
+     * 
+     * @param blockList The packed blocks, NO_BLOCK entries at the end are ignored.
+     * @return The encoded blocks.
+     */
+    private String encodeBlocks(long[] blockList) {
+        StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < CompactBlockMap.length(blockList); i++) {
+            long block = blockList[i];
+            if (encoded.length() > 0) {
+                encoded.append(',');
+            }
+            encoded.append(fileToBlockMap.getDataNodeId(block)).append(':').append(CompactBlockMap.getBlockNumber(block));
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Reads blocks written by encodeBlocks.
+     * 
+     * @param encoded The encoded blocks, may be empty.
+     * @return The packed blocks.
+     */
+    private long[] decodeBlocks(String encoded) {
+        String[] blocks = encoded.isEmpty() ? new String[0] : encoded.split(",");
+        long[] blockList = new long[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            int separator = blocks[i].indexOf(':');
+            blockList[i] = fileToBlockMap.pack(blocks[i].substring(0, separator), Integer.parseInt(blocks[i].substring(separator + 1)));
+        }
+        return blockList;
+    }
+
     private class NameNodeHandler extends Thread {
-        private static Socket clientSocket;
+        private final Socket clientSocket;
 
         public NameNodeHandler(Socket socket) {
             this.clientSocket = socket;
-            System.out.println("[DEBUG] New client connection accepted: " + clientSocket.getRemoteSocketAddress());
+            Log.debug("New client connection accepted: {}", clientSocket.getRemoteSocketAddress());
         }
 
         public void run() {
+            metrics.increment("connections.total");
+            metrics.add("connections.active", 1);
             try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
                  BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
 
                 String inputLine;
                 while ((inputLine = in.readLine()) != null && running) {
-                    System.out.println("[DEBUG] NameNode received: " + inputLine);
+                    Log.debug("NameNode received: {}", inputLine);
+                    metrics.addBytes("bytes.in", inputLine);
                     if (".".equals(inputLine)) {
                         break;
                     }
+                    Headers headers = Headers.parse(inputLine);
+                    String request = headers.getBody();
 
                     // Handle shutdown command
-                    if ("shutdown".equalsIgnoreCase(inputLine.trim())) {
+                    if ("shutdown".equalsIgnoreCase(request.trim())) {
                         out.println("NameNode is shutting down.");
                         initiateShutdown();
                         break;
                     }
 
-                    // Handle other commands (append, read, etc.)
-                    NameNodeHandlerClient dataNodeClient = new NameNodeHandlerClient();
-                    String[] tokens = inputLine.split(" ");
-                    String filename;
-                    if (tokens[0].equalsIgnoreCase("read") && tokens.length == 2) {
-                        filename = tokens[1];
-                        read(filename, dataNodeClient);
+                    // Requests tagged with a request id are answered asynchronously on the same connection
+                    Span span = Tracer.continueTrace(headers.get("trace"), "namenode.request");
+                    String requestId = headers.get("req");
+                    if (requestId != null) {
+                        schedule(headers, inputLine.length(), request, span, response -> respond(out,
+                                Headers.prepend("req", requestId, response == null ? "ERROR: Invalid Command" : response), span));
+                        continue;
+                    }
+
+                    // Handle other commands (append, read, stats, etc.)
+                    CompletableFuture<String> result = new CompletableFuture<>();
+                    schedule(headers, inputLine.length(), request, span, result::complete);
+                    String response = result.join();
+                    if (response == null) {
+                        span.end();
+                        continue;
+                    }
+                    if (request.regionMatches(true, 0, "read ", 0, 5)) {
+                        Span respondSpan = span.child("namenode.respond");
+                        sendResponse(response);
+                        respondSpan.end();
+                        span.end();
+                        metrics.addBytes("bytes.out", response);
                         break;
-                    } else if (tokens[0].equalsIgnoreCase("append") && tokens.length >= 3) {
-                        filename = tokens[1];
-                        String content = inputLine.split(" ", 3)[2];
-                        append(filename, content, dataNodeClient);
-                    } else {
-                        System.out.println("[DEBUG] NameNode ERROR: Failed to parse string in NameNode");
                     }
+                    respond(out, response, span);
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Error while handling client connection", e);
             } finally {
+                metrics.add("connections.active", -1);
+                openConnections.decrementAndGet();
+                handlers.remove(this);
                 try {
                     clientSocket.close();
-                    System.out.println("[DEBUG] Closed client connection: " + clientSocket.getRemoteSocketAddress());
+                    Log.debug("Closed client connection: {}", clientSocket.getRemoteSocketAddress());
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Error while closing client connection", e);
+                }
+            }
+        }
+
+        /**
+         * Admits a request into the scheduler, answering it directly if it is a STATS request or cannot be admitted.
+         * 
+         * @param headers The headers of the request.
+         * @param size The size of the request on the wire.
+         * @param request The request without headers.
+         * @param span The trace span of this request.
+         * @param reply Receives the response, or null if the request could not be parsed.
+         */
+        private void schedule(Headers headers, int size, String request, Span span, Consumer<String> reply) {
+            if ("stats".equalsIgnoreCase(request.trim())) {
+                reply.accept(metrics.format()); // Monitoring must keep working under overload
+                return;
+            }
+            if (isFederationRequest(request)) {
+                reply.accept(handleFederationRequest(headers, request, span));
+                return;
+            }
+            String clientId = headers.get("client");
+            if (clientId == null) {
+                clientId = clientSocket.getInetAddress().getHostAddress();
+            }
+            long timeoutMillis = 0;
+            if (headers.get("timeout") != null) {
+                try {
+                    timeoutMillis = Long.parseLong(headers.get("timeout"));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring invalid timeout header: {}", headers.get("timeout"));
+                }
+            }
+            Span queueSpan = span.child("namenode.queue");
+            FairScheduler.Task task = new FairScheduler.Task(clientId, estimateCost(request, size), timeoutMillis, () -> {
+                queueSpan.end();
+                String response;
+                try {
+                    response = handleRequest(request, span);
+                } catch (RuntimeException e) {
+                    Log.error("Failed to handle request: " + Log.truncate(request), e);
+                    metrics.increment("errors");
+                    response = "ERROR: Internal error";
+                }
+                reply.accept(response);
+                return size + (response == null ? 0 : response.length()); // Appended or read bytes dominate
+            }, () -> reply.accept("ERROR: Deadline exceeded"), () -> reply.accept("ERROR: Server busy"));
+            if (!scheduler.submit(task)) {
+                reply.accept("ERROR: Server busy");
+            }
+        }
+
+        /**
+         * Checks whether a request is one that only NameNodes and their administrator send.
+         * 
+         * @param request The request without headers.
+         * @return True for PARTITIONS, EXPORT, IMPORT, MIGRATE and PENDING requests.
+         */
+        private boolean isFederationRequest(String request) {
+            String command = request.split(" ", 2)[0].toLowerCase();
+            return command.equals("partitions") || command.equals("export") || command.equals("import")
+                    || command.equals("migrate") || command.equals("pending");
+        }
+
+        /**
+         * Executes a federation request on the connection thread if it comes from a peer NameNode.
+         * These requests never wait on the FairScheduler workers, only on the file map and on pulls from other
+         * NameNodes, which are answered the same way.
+         * 
+         * @param headers The headers of the request.
+         * @param request The request without headers.
+         * @param span The trace span of this request.
+         * @return The response line, or null if the request could not be parsed.
+         */
+        private String handleFederationRequest(Headers headers, String request, Span span) {
+            if (!isPeer(headers)) {
+                Log.warn("Rejected federation request from {}", clientSocket.getRemoteSocketAddress());
+                metrics.increment("federation.rejected");
+                return "ERROR: Not a peer NameNode";
+            }
+            try {
+                return handleRequest(request, span);
+            } catch (RuntimeException e) {
+                Log.error("Failed to handle request: " + Log.truncate(request), e);
+                metrics.increment("errors");
+                return "ERROR: Internal error";
+            }
+        }
+
+        /**
+         * Checks whether this connection comes from the host of a NameNode in the partition tables and carries the
+         * federation secret, if one is set.
+         * 
+         * @param headers The headers of the request.
+         * @return True if the connection comes from a peer NameNode.
+         */
+        private boolean isPeer(Headers headers) {
+            if (FEDERATION_SECRET != null && (headers.get("secret") == null
+                    || !MessageDigest.isEqual(FEDERATION_SECRET.getBytes(StandardCharsets.UTF_8),
+                            headers.get("secret").getBytes(StandardCharsets.UTF_8)))) {
+                return false;
+            }
+            List<String> nameNodes = new ArrayList<>(partitionTable.getNameNodes());
+            PartitionTable previous = previousTable;
+            if (previous != null) {
+                nameNodes.addAll(previous.getNameNodes());
+            }
+            for (String nameNode : nameNodes) {
+                try {
+                    if (InetAddress.getByName(PartitionTable.getHost(nameNode)).equals(clientSocket.getInetAddress())) {
+                        return true;
+                    }
+                } catch (UnknownHostException e) {
+                    Log.warn("Unable to resolve NameNode {}", nameNode);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Estimates the scheduling cost of a request before it runs. Appends cost their size, and reads of a whole
+         * file the minimum cost per block, the scheduler settles both to the bytes actually moved afterwards.
+         * 
+         * @param request The request without headers.
+         * @param size The size of the request on the wire.
+         * @return The estimated cost in bytes.
+         */
+        private long estimateCost(String request, int size) {
+            if (request.regionMatches(true, 0, "read ", 0, 5)) {
+                String[] tokens = request.split(" ");
+                if (tokens.length == 2) {
+                    return (long) getBlockCount(tokens[1]) * FairScheduler.MIN_COST;
                 }
             }
+            return size;
+        }
+
+        /**
+         * Parses and executes a single request.
+         * 
+         * @param request The request without headers.
+         * @param span The trace span of this request.
+         * @return The response line, or null if the request could not be parsed.
+         */
+        private String handleRequest(String request, Span span) {
+            long startTime = System.nanoTime();
+            Span parseSpan = span.child("namenode.parse");
+            NameNodeHandlerClient dataNodeClient = new NameNodeHandlerClient();
+            String[] tokens = request.split(" ");
+            String filename;
+            parseSpan.end();
+            String command = tokens[0].toLowerCase();
+            if (tokens.length >= 2 && (command.equals("read") || command.equals("blocks") || command.equals("append")
+                    || command.equals("import") || command.equals("migrate") || command.equals("delete")
+                    || command.equals("truncate"))) {
+                String redirect = checkOwnership(tokens[1], !command.equals("read") && !command.equals("blocks"));
+                if (redirect != null) {
+                    return redirect;
+                }
+            }
+            if (tokens[0].equalsIgnoreCase("stats") && tokens.length == 1) {
+                return metrics.format();
+            } else if (tokens[0].equalsIgnoreCase("read") && tokens.length == 2) {
+                filename = tokens[1];
+                String content = read(filename, dataNodeClient, span);
+                metrics.recordLatency("op.read", System.nanoTime() - startTime);
+                return content;
+            } else if (tokens[0].equalsIgnoreCase("read") && tokens.length == 3 && tokens[2].matches("\\d+")) {
+                filename = tokens[1];
+                String content = read(filename, Integer.parseInt(tokens[2]), dataNodeClient, span);
+                metrics.recordLatency("op.readBlock", System.nanoTime() - startTime);
+                return content == null ? "ERROR: No such block" : content;
+            } else if (tokens[0].equalsIgnoreCase("blocks") && tokens.length == 2) {
+                return String.valueOf(getBlockCount(tokens[1]));
+            } else if (tokens[0].equalsIgnoreCase("append") && tokens.length >= 3) {
+                filename = tokens[1];
+                String content = request.split(" ", 3)[2];
+                boolean stored = append(filename, content, dataNodeClient, span);
+                metrics.recordLatency("op.append", System.nanoTime() - startTime);
+                return stored ? "COMPLETE" : "ERROR: No free blocks";
+            } else if (tokens[0].equalsIgnoreCase("delete") && tokens.length == 2) {
+                String response = deleteFile(tokens[1]);
+                metrics.recordLatency("op.delete", System.nanoTime() - startTime);
+                return response;
+            } else if (tokens[0].equalsIgnoreCase("truncate") && tokens.length == 3 && tokens[2].matches("\\d+")) {
+                String response = truncateFile(tokens[1], Integer.parseInt(tokens[2]));
+                metrics.recordLatency("op.truncate", System.nanoTime() - startTime);
+                return response;
+            } else if (tokens[0].equalsIgnoreCase("import") && tokens.length == 3) {
+                importBlocks(tokens[1], tokens[2]);
+                return "COMPLETE";
+            } else if (tokens[0].equalsIgnoreCase("migrate") && tokens.length == 2) {
+                return "COMPLETE"; // Ownership checks above already pulled the file
+            } else if (tokens[0].equalsIgnoreCase("export") && tokens.length == 2) {
+                return exportFile(tokens[1]);
+            } else if (tokens[0].equalsIgnoreCase("partitions") && tokens.length == 2) {
+                return repartition(PartitionTable.parse(tokens[1]));
+            } else if (tokens[0].equalsIgnoreCase("pending") && tokens.length == 4) {
+                return countPending(tokens[1], tokens[2], tokens[3]);
+            } else {
+                Log.warn("Failed to parse request: {}", request);
+                metrics.increment("errors");
+                return null;
+            }
+        }
+
+        /**
+         * Writes one response line, keeping concurrent responses on the same connection from interleaving.
+         * 
+         * @param out The output stream of the connection.
+         * @param response The response line.
+         * @param span The trace span of the request, ended once the response is written.
+         */
+        private void respond(PrintWriter out, String response, Span span) {
+            Span respondSpan = span.child("namenode.respond");
+            synchronized (out) {
+                out.println(response);
+            }
+            respondSpan.end();
+            span.end();
+            metrics.addBytes("bytes.out", response);
         }
 
         /**
@@ -142,7 +816,7 @@ public class NameNode {
             try {
                 clientSocket.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Error while shutting down client handler", e);
             }
         }
 
@@ -152,9 +826,11 @@ public class NameNode {
          * @param filename The name of the file.
          * @param content The content to append.
          * @param dataNodeClient The client for communication with DataNodes.
+         * @param span The trace span of this request.
+         * @return True if the content was stored, false if every DataNode is full.
          */
-        public void append(String filename, String content, NameNodeHandlerClient dataNodeClient) {
-            int blockCount = (content.length() * 2 > MB) ? MB / content.length() + 1 : 1;
+        public boolean append(String filename, String content, NameNodeHandlerClient dataNodeClient, Span span) {
+            int blockCount = Math.max(1, (content.length() + MB - 1) / MB);
             List<String> contentSegments = new ArrayList<>();
             for (int i = 0; i < blockCount; i++) {
                 int startIdx = i * MB;
@@ -162,37 +838,72 @@ public class NameNode {
                 contentSegments.add(content.substring(startIdx, endIdx));
             }
 
-            List<Pair> blockList = new ArrayList<>();
+            long[] blockList = new long[blockCount];
             int blocksReceived = 0;
             int dataNodeSelector = 0;
+            int fullDataNodes = 0; // DataNodes in a row that had no free block
 
             while (blocksReceived < blockCount) {
-                int port = 65530 + (dataNodeSelector % 3);
-                String dataNodeId = "D" + (dataNodeSelector % 3 + 1);
+                if (fullDataNodes >= DATA_NODE_COUNT) {
+                    Log.warn("No DataNode has a free block for: {}", filename);
+                    return false;
+                }
+                String dataNodeId = "D" + (dataNodeSelector % DATA_NODE_COUNT + 1);
+                int port = getDataNodePort(dataNodeId);
+                long allocStart = System.nanoTime();
+                Span allocSpan = span.child("namenode.alloc");
+                Span connectSpan = allocSpan.child("namenode.connect");
                 dataNodeClient.startConnection("127.0.0.1", port);
-                String blockIdStr = dataNodeClient.sendMessage("Alloc");
+                connectSpan.end();
+                String blockIdStr = dataNodeClient.sendMessage(allocSpan.inject("Alloc"));
                 dataNodeClient.stopConnection();
+                allocSpan.end();
+                metrics.recordLatency("rpc.alloc", System.nanoTime() - allocStart);
 
                 if (!blockIdStr.equals("-1")) {
                     int blockId = Integer.parseInt(blockIdStr);
-                    blockList.add(new Pair(dataNodeId, blockId));
+                    blockList[blocksReceived] = fileToBlockMap.pack(dataNodeId, blockId);
                     String message = "Write " + blockId + " " + contentSegments.get(blocksReceived);
+                    long writeStart = System.nanoTime();
+                    Span writeSpan = span.child("namenode.write");
+                    connectSpan = writeSpan.child("namenode.connect");
                     dataNodeClient.startConnection("127.0.0.1", port);
-                    dataNodeClient.sendMessage(message);
+                    connectSpan.end();
+                    dataNodeClient.sendMessage(writeSpan.inject(message));
                     dataNodeClient.stopConnection();
+                    writeSpan.end();
+                    metrics.recordLatency("rpc.write", System.nanoTime() - writeStart);
                     blocksReceived++;
+                    fullDataNodes = 0;
                 } else {
                     dataNodeSelector++;
+                    fullDataNodes++;
                 }
             }
 
+            long waitStart = System.nanoTime();
+            Span lockSpan = span.child("namenode.mapLock");
             synchronized (mapLock) {
-                if (fileToBlockMap.containsKey(filename)) {
-                    fileToBlockMap.get(filename).addAll(blockList);
-                } else {
-                    fileToBlockMap.put(filename, blockList);
+                lockSpan.end();
+                metrics.recordLatency("lock.mapLock.wait", System.nanoTime() - waitStart);
+                if (fileToBlockMap.contains(filename) || partitionTable.ownerOf(filename).equals(address)) {
+                    fileToBlockMap.append(filename, blockList);
+                    return true;
                 }
             }
+            // The file was handed to its new owner while its blocks were being written
+            String owner = partitionTable.ownerOf(filename);
+            try {
+                String response = callNameNode(owner, "IMPORT " + filename + " " + encodeBlocks(blockList));
+                if ("COMPLETE".equals(response)) {
+                    return true;
+                }
+                Log.warn("Owner did not take appended blocks of {}", filename + ": " + response);
+            } catch (IOException e) {
+                Log.error("Unable to forward appended blocks of " + filename + " to " + owner, e);
+            }
+            reclaimer.reclaim(blockList); // Referenced nowhere, free them again
+            return false;
         }
 
         /**
@@ -200,22 +911,85 @@ public class NameNode {
          * 
          * @param filename The name of the file.
          * @param dataNodeClient The client for communication with DataNodes.
+         * @param span The trace span of this request.
+         * @return The content of the file.
          */
-        public void read(String filename, NameNodeHandlerClient dataNodeClient) {
-            List<Pair> blockList = fileToBlockMap.getOrDefault(filename, new ArrayList<>());
-            List<String> contentSegments = new ArrayList<>();
+        public String read(String filename, NameNodeHandlerClient dataNodeClient, Span span) {
+            int blockCount;
+            synchronized (mapLock) {
+                blockCount = fileToBlockMap.getBlockCount(filename);
+            }
+            List<String> contentSegments = new ArrayList<>(blockCount);
 
-            for (Pair block : blockList) {
-                int port = 65530 + (Integer.parseInt(block.getDataNodeId().substring(1)) - 1);
-                dataNodeClient.startConnection("127.0.0.1", port);
-                String blockContent = dataNodeClient.sendMessage("Read " + block.getBlockNumber());
-                dataNodeClient.stopConnection();
-                contentSegments.add(blockContent);
+            // Blocks are resolved one at a time, appends only add blocks after the ones counted
+            for (int i = 0; i < blockCount; i++) {
+                long block;
+                synchronized (mapLock) {
+                    block = fileToBlockMap.getBlock(filename, i);
+                }
+                if (block == CompactBlockMap.NO_BLOCK) {
+                    break;
+                }
+                contentSegments.add(readBlock(block, dataNodeClient, span));
             }
 
             String fullContent = String.join(" ", contentSegments);
-            System.out.println("Output: " + fullContent);
-            sendResponse(fullContent);
+            Log.debug("Output for {}: {}", filename, fullContent);
+            return fullContent;
+        }
+
+        /**
+         * Reads a single block of the specified file.
+         * 
+         * @param filename The name of the file.
+         * @param index The position of the block within the file, starting at 0.
+         * @param dataNodeClient The client for communication with DataNodes.
+         * @param span The trace span of this request.
+         * @return The content of the block, or null if the file has no block at that position.
+         */
+        public String read(String filename, int index, NameNodeHandlerClient dataNodeClient, Span span) {
+            long block;
+            synchronized (mapLock) {
+                block = fileToBlockMap.getBlock(filename, index);
+            }
+            if (block == CompactBlockMap.NO_BLOCK) {
+                return null;
+            }
+            return readBlock(block, dataNodeClient, span);
+        }
+
+        /**
+         * Gets the number of blocks of the specified file.
+         * 
+         * @param filename The name of the file.
+         * @return The number of blocks, 0 if the file does not exist.
+         */
+        public int getBlockCount(String filename) {
+            synchronized (mapLock) {
+                return fileToBlockMap.getBlockCount(filename);
+            }
+        }
+
+        /**
+         * Fetches the content of one block from the DataNode that stores it.
+         * 
+         * @param block The packed DataNode and block number.
+         * @param dataNodeClient The client for communication with DataNodes.
+         * @param span The trace span of this request.
+         * @return The content of the block.
+         */
+        private String readBlock(long block, NameNodeHandlerClient dataNodeClient, Span span) {
+            int port = fileToBlockMap.getDataNodePort(block);
+            long readStart = System.nanoTime();
+            Span readSpan = span.child("namenode.read");
+            Span connectSpan = readSpan.child("namenode.connect");
+            dataNodeClient.startConnection("127.0.0.1", port);
+            connectSpan.end();
+            String blockContent = dataNodeClient.sendMessage(readSpan.inject("Read " + CompactBlockMap.getBlockNumber(block)));
+            dataNodeClient.stopConnection();
+            readSpan.end();
+            metrics.recordLatency("rpc.read", System.nanoTime() - readStart);
+            return blockContent == null ? "" : blockContent; // An empty block is answered with no bytes at all
         }
 
         /**
@@ -231,7 +1005,7 @@ public class NameNode {
                 responseWriter.flush();
                 responseWriter.close();
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("Unable to send response to client", e);
             }
         }
 
@@ -255,7 +1029,7 @@ public class NameNode {
                     out = new PrintWriter(clientSocket.getOutputStream(), true);
                     in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    Log.error("Unable to connect to DataNode on port: " + port, e);
                 }
             }
 
@@ -270,9 +1044,9 @@ public class NameNode {
                     out.println(msg);
                     return in.readLine();
                 } catch (SocketException e) {
-                    System.err.println("Connection reset by server. Server might be down.");
+                    Log.error("Connection reset by DataNode. DataNode might be down.");
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Error while talking to DataNode", e);
                 }
                 return "";
             }
@@ -286,7 +1060,7 @@ public class NameNode {
                     out.close();
                     clientSocket.close();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("Error while closing DataNode connection", e);
                 }
             }
         }
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PartitionTable class maps filenames to the NameNode that owns their metadata.
+ * NameNodes are placed on a consistent hash ring with many virtual nodes each, and a file belongs to the first virtual
+ * node at or after the hash of its name. Adding a NameNode therefore only moves the files that now hash to it, about
+ * 1/N of the namespace, and leaves the ownership of every other file unchanged.
+ *
+ * NameNodes are written as "host:port" and a table as a comma separated list of them. Clients and NameNodes read their
+ * table from the "dfs.namenodes" system property, "127.0.0.1:5558" by default.
+ */
+public class PartitionTable {
+    private static final int VIRTUAL_NODES = 256; // Ring positions per NameNode, more positions spread files more evenly
+
+    private final List<String> nameNodes; // NameNode addresses in the order they were listed
+    private final long[] ring; // Sorted hashes of all virtual nodes
+    private final String[] owners; // NameNode address of each ring position
+
+    /**
+     * Constructor to build the ring for a set of NameNodes.
+     *
+     * @param nameNodes The NameNode addresses as "host:port", at least one.
+     */
+    public PartitionTable(List<String> nameNodes) {
+        if (nameNodes.isEmpty()) {
+            throw new IllegalArgumentException("A partition table needs at least one NameNode");
+        }
+        this.nameNodes = Collections.unmodifiableList(new ArrayList<>(nameNodes));
+        long[][] positions = new long[nameNodes.size() * VIRTUAL_NODES][];
+        for (int i = 0; i < nameNodes.size(); i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                positions[i * VIRTUAL_NODES + v] = new long[] {hash(nameNodes.get(i) + "#" + v), i};
+            }
+        }
+        Arrays.sort(positions, (a, b) -> Long.compare(a[0], b[0]));
+        ring = new long[positions.length];
+        owners = new String[positions.length];
+        for (int p = 0; p < positions.length; p++) {
+            ring[p] = positions[p][0];
+            owners[p] = nameNodes.get((int) positions[p][1]);
+        }
+    }
+
+    /**
+     * Parses a comma separated list of NameNode addresses.
+     *
+     * @param spec The list, e.g. "127.0.0.1:5558,127.0.0.1:5559".
+     * @return The partition table.
+     */
+    public static PartitionTable parse(String spec) {
+        List<String> nameNodes = new ArrayList<>();
+        for (String address : spec.split(",")) {
+            if (!address.trim().isEmpty()) {
+                nameNodes.add(address.trim());
+            }
+        }
+        return new PartitionTable(nameNodes);
+    }
+
+    /**
+     * Reads the partition table from the "dfs.namenodes" system property.
+     *
+     * @return The partition table.
+     */
+    public static PartitionTable fromProperty() {
+        return parse(System.getProperty("dfs.namenodes", "127.0.0.1:5558"));
+    }
+
+    /**
+     * Gets the NameNode that owns a file.
+     *
+     * @param filename The name of the file.
+     * @return The address of the owning NameNode.
+     */
+    public String ownerOf(String filename) {
+        int position = Arrays.binarySearch(ring, hash(filename));
+        if (position < 0) {
+            position = -position - 1;
+        }
+        return owners[position == ring.length ? 0 : position];
+    }
+
+    /**
+     * Gets all NameNodes of the table.
+     *
+     * @return The NameNode addresses.
+     */
+    public List<String> getNameNodes() {
+        return nameNodes;
+    }
+
+    /**
+     * Gets the host of a NameNode address.
+     *
+     * @param address The address as "host:port".
+     * @return The host.
+     */
+    public static String getHost(String address) {
+        return address.substring(0, address.lastIndexOf(':'));
+    }
+
+    /**
+     * Gets the port of a NameNode address.
+     *
+     * @param address The address as "host:port".
+     * @return The port number.
+     */
+    public static int getPort(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Formats the table the way parse() reads it.
+     */
+    @Override
+    public String toString() {
+        return String.join(",", nameNodes);
+    }
+
+    /**
+     * Hashes a string with 64-bit FNV-1a followed by a finalizer, so that similar names land far apart on the ring.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
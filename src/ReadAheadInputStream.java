@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * ReadAheadInputStream class reads a file block by block through the NameNode.
+ * With read-ahead enabled the next block is fetched in the background while the current one is consumed,
+ * so sequential readers overlap their round trips with their own processing.
+ * Blocks are returned back to back, without the separator the whole-file READ command puts between them.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile String ip; // IP address of the NameNode that owns the file
+    private volatile int port; // Port number of the NameNode that owns the file
+    private final String filename; // File being read
+    private final boolean readAhead; // Whether the next block is prefetched
+    private final int blockCount; // Number of blocks when the stream was opened
+    private int nextBlock; // Index of the next block to fetch
+    private CompletableFuture<byte[]> prefetched; // Fetch of block nextBlock in progress, null if none
+    private byte[] current = new byte[0]; // Block being consumed
+    private int position; // Read position in the current block
+
+    /**
+     * Constructor to open a file for reading.
+     *
+     * @param ip The IP address of the NameNode.
+     * @param port The port number of the NameNode.
+     * @param filename The file to read.
+     * @param readAhead Whether to prefetch the next block while the current one is consumed.
+     * @throws IOException If the number of blocks cannot be determined.
+     */
+    public ReadAheadInputStream(String ip, int port, String filename, boolean readAhead) throws IOException {
+        this.ip = ip;
+        this.port = port;
+        this.filename = filename;
+        this.readAhead = readAhead;
+        String response = request("BLOCKS " + filename);
+        try {
+            this.blockCount = Integer.parseInt(response);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unable to open " + filename + ": " + response);
+        }
+        if (readAhead) {
+            prefetch();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int chunk = Math.min(length, current.length - position);
+        System.arraycopy(current, position, data, offset, chunk);
+        position += chunk;
+        return chunk;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    /**
+     * Makes sure the current block has unread bytes, moving on to the next block if needed.
+     *
+     * @return False once every block has been consumed.
+     */
+    private boolean fill() throws IOException {
+        while (position == current.length) {
+            if (nextBlock >= blockCount) {
+                return false;
+            }
+            try {
+                if (prefetched == null) {
+                    prefetch();
+                }
+                current = prefetched.join();
+            } catch (CompletionException e) {
+                prefetched = null; // Retried by the next read
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            position = 0;
+            prefetched = null;
+            nextBlock++;
+            if (readAhead && nextBlock < blockCount) {
+                prefetch();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts fetching block nextBlock, in the background when read-ahead is enabled.
+     * Without read-ahead the block is fetched right away and a failure is thrown as a CompletionException.
+     */
+    private void prefetch() {
+        int index = nextBlock;
+        if (index >= blockCount) {
+            return;
+        }
+        if (readAhead) {
+            prefetched = CompletableFuture.supplyAsync(() -> fetch(index), prefetcher);
+        } else {
+            prefetched = CompletableFuture.completedFuture(fetch(index));
+        }
+    }
+
+    /**
+     * Fetches a single block.
+     */
+    private byte[] fetch(int index) {
+        try {
+            String content = request("READ " + filename + " " + index);
+            if (content == null) {
+                return new byte[0]; // The contents of a block are sent without a line break, none at all if empty
+            }
+            if (content.startsWith("ERROR")) {
+                throw new IOException("Unable to read block " + index + " of " + filename + ": " + content);
+            }
+            return content.getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Sends one request on its own connection, the same way the interactive Client does,
+     * and once more to the new owner of the file if it has moved.
+     */
+    private String request(String command) throws IOException {
+        String response = send(command);
+        if (response != null && response.startsWith("MOVED ")) {
+            String owner = response.substring("MOVED ".length()).trim();
+            ip = PartitionTable.getHost(owner);
+            port = PartitionTable.getPort(owner);
+            response = send(command);
+        }
+        return response;
+    }
+
+    /**
+     * Sends one request to the NameNode currently believed to own the file.
+     *
+     * @return The response line, or null if the NameNode closed the connection without sending any bytes.
+     */
+    private String send(String command) throws IOException {
+        Client client = new Client();
+        client.connect(ip, port);
+        String response = client.sendMessage(command);
+        client.sendMessage(".");
+        client.stopConnection();
+        if ("ERROR".equals(response)) {
+            throw new IOException("No response from NameNode for: " + command);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * RingBuffer class is a bounded, lock-free queue for many producers and a single consumer.
+ * Producers claim a slot with a compare-and-set on the tail sequence and never block; when the buffer is full the offer fails.
+ * Only one thread may call poll().
+ */
+public class RingBuffer<T> {
+    private final AtomicReferenceArray<T> slots; // Published elements, null while a slot is free or not yet published
+    private final int mask; // Capacity - 1, used to map a sequence onto a slot
+    private final AtomicLong tail = new AtomicLong(); // Next sequence to be claimed by a producer
+    private volatile long head; // Next sequence to be consumed, written only by the consumer
+
+    /**
+     * Constructor to create a ring buffer with at least the requested capacity.
+     *
+     * @param requestedCapacity The minimum number of elements the buffer can hold, rounded up to a power of two.
+     */
+    public RingBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds an element without blocking.
+     *
+     * @param element The element to add, must not be null.
+     * @return True if the element was added, false if the buffer is full.
+     */
+    public boolean offer(T element) {
+        while (true) {
+            long sequence = tail.get();
+            if (sequence - head > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(sequence, sequence + 1)) {
+                slots.lazySet((int) (sequence & mask), element);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest published element. Must only be called by the single consumer thread.
+     *
+     * @return The element, or null if none is available yet.
+     */
+    public T poll() {
+        long sequence = head;
+        int index = (int) (sequence & mask);
+        T element = slots.get(index);
+        if (element == null) {
+            return null;
+        }
+        slots.lazySet(index, null);
+        head = sequence + 1;
+        return element;
+    }
+
+    /**
+     * Checks if no sequence has been claimed beyond what was consumed.
+     *
+     * @return True if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
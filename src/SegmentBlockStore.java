@@ -0,0 +1,468 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * SegmentBlockStore class stores the blocks of a DataNode in a log: every write is appended to the active segment, a
+ * large file sized up front, and an in-memory index maps each block to the segment, offset and length of its latest
+ * contents. Writes therefore never create, truncate or open files, and sync() forces one segment and the index no matter
+ * how many blocks were written, which makes small writes and group commits much cheaper than with one file per block.
+ *
+ * The index is persisted as an append-only log of fixed size entries in "index.log" and replayed when the store is
+ * opened. Each entry carries a CRC32C of the block contents, so entries whose data did not reach the disk before a
+ * crash are detected and dropped. A background compactor copies the live blocks out of sealed segments that are
+ * mostly garbage, from overwritten or deleted blocks, then deletes those segments and rewrites the index log.
+ *
+ * Configured with "dfs.segment.sizeBytes" (67108864), "dfs.segment.compactThreshold" (50, the percentage of garbage
+ * that makes a segment worth compacting) and "dfs.segment.compactIntervalMs" (10000).
+ */
+class SegmentBlockStore extends Thread implements BlockStore {
+    private static final int ENTRY_SIZE = 28; // op, block ID, segment, offset (long), length and CRC
+    private static final int PUT = 1; // Index entry giving the location of a block
+    private static final int DELETE = 2; // Index entry removing a block
+    private static final int NO_SEGMENT = -1; // Segment of empty blocks, which take no space
+
+    private final Path directory; // Directory holding the segments and the index log
+    private final Metrics metrics; // Metrics of the DataNode
+    private final long segmentSize = Long.getLong("dfs.segment.sizeBytes", 67108864); // Size of a new segment
+    private final int compactThreshold = Integer.getInteger("dfs.segment.compactThreshold", 50); // Garbage percentage
+    private final long compactIntervalMillis = Long.getLong("dfs.segment.compactIntervalMs", 10000); // Compactor period
+    private final Map<Integer, Location> index = new ConcurrentHashMap<>(); // Latest location of every block
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>(); // Open segments by ID
+    private final ReentrantReadWriteLock segmentsLock = new ReentrantReadWriteLock(); // Readers against segment deletion
+    private final Set<Integer> recovered = new HashSet<>(); // Blocks found when the store was opened
+    private Segment active; // Segment being appended to, guarded by this
+    private FileChannel indexLog; // Index log, guarded by this
+    private long indexEntries; // Entries in the index log, guarded by this
+    private final Set<Segment> unsynced = new HashSet<>(); // Segments written since the last sync, guarded by this
+    private final CountDownLatch stopped = new CountDownLatch(1); // Released to stop the compactor
+
+    /**
+     * Where the contents of a block are stored.
+     */
+    private static class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final int crc;
+
+        private Location(int segment, long offset, int length, int crc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    /**
+     * An open segment file.
+     */
+    private static class Segment {
+        private final int id;
+        private final Path path;
+        private final FileChannel channel;
+        private final long capacity; // Bytes that fit in the segment
+        private long end; // Bytes appended so far, guarded by the store
+        private long liveBytes; // Bytes still referenced by the index, guarded by the store
+
+        private Segment(int id, Path path, FileChannel channel, long capacity) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Constructor to open the segment store in a directory, replaying its index log.
+     *
+     * @param directory The directory holding the segments and the index log.
+     * @param metrics The metrics of the DataNode.
+     * @throws IOException If the store cannot be opened.
+     */
+    public SegmentBlockStore(Path directory, Metrics metrics) throws IOException {
+        super("segment-compactor");
+        this.directory = directory;
+        this.metrics = metrics;
+        setDaemon(true);
+        int lastSegment = openSegments();
+        replayIndex();
+        indexLog = FileChannel.open(directory.resolve("index.log"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        indexLog.position(indexEntries * ENTRY_SIZE); // Drops a torn entry left by a crash
+        Segment last = segments.get(lastSegment);
+        active = last != null && last.end < last.capacity ? last : createSegment(lastSegment + 1, segmentSize);
+        metrics.registerGauge("store.segments", segments::size);
+        metrics.registerGauge("store.garbageBytes", this::getGarbageBytes);
+        Log.info("Opened {} segments with {} blocks", segments.size(), index.size());
+    }
+
+    /**
+     * Opens the existing segment files.
+     *
+     * @return The highest segment ID found, or -1 if there are none.
+     */
+    private int openSegments() throws IOException {
+        int lastSegment = -1;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "seg_*.dat")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                int id = Integer.parseInt(name.substring("seg_".length(), name.length() - ".dat".length()));
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.put(id, new Segment(id, file, channel, channel.size()));
+                lastSegment = Math.max(lastSegment, id);
+            }
+        }
+        return lastSegment;
+    }
+
+    /**
+     * Rebuilds the index from the index log and drops the entries whose contents are missing or corrupt.
+     */
+    private void replayIndex() throws IOException {
+        Path path = directory.resolve("index.log");
+        if (Files.exists(path)) {
+            ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (log.remaining() >= ENTRY_SIZE) {
+                int op = log.getInt();
+                int blockId = log.getInt();
+                Location location = new Location(log.getInt(), log.getLong(), log.getInt(), log.getInt());
+                indexEntries++;
+                if (op == DELETE) {
+                    index.remove(blockId);
+                    continue;
+                }
+                index.put(blockId, location);
+                Segment segment = segments.get(location.segment);
+                if (segment != null) {
+                    segment.end = Math.max(segment.end, location.offset + location.length);
+                }
+            }
+        }
+        for (Map.Entry<Integer, Location> entry : new ArrayList<>(index.entrySet())) {
+            Location location = entry.getValue();
+            if (location.segment == NO_SEGMENT) {
+                recovered.add(entry.getKey());
+                continue;
+            }
+            Segment segment = segments.get(location.segment);
+            byte[] data = segment == null ? null : readAt(segment, location);
+            if (data == null || checksum(data) != location.crc) {
+                Log.warn("Dropping block with missing or corrupt contents: {}", entry.getKey());
+                index.remove(entry.getKey());
+                continue;
+            }
+            segment.liveBytes += location.length;
+            recovered.add(entry.getKey());
+        }
+    }
+
+    @Override
+    public Set<Integer> getBlockIds() {
+        return recovered;
+    }
+
+    @Override
+    public synchronized void create(int blockId) throws IOException {
+        update(blockId, new Location(NO_SEGMENT, 0, 0, checksum(new byte[0])));
+    }
+
+    @Override
+    public byte[] read(int blockId) throws IOException {
+        while (true) {
+            Location location = index.get(blockId);
+            if (location == null) {
+                return null;
+            }
+            if (location.segment == NO_SEGMENT) {
+                return new byte[0];
+            }
+            segmentsLock.readLock().lock();
+            try {
+                Segment segment = segments.get(location.segment);
+                if (segment != null) {
+                    return readAt(segment, location);
+                }
+                // Compacted away since the location was looked up, the index already points to the copy
+            } finally {
+                segmentsLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void write(int blockId, byte[] data) throws IOException {
+        update(blockId, append(data, checksum(data)));
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        long startTime = System.nanoTime();
+        for (Segment segment : unsynced) {
+            segment.channel.force(false);
+        }
+        unsynced.clear();
+        indexLog.force(false); // After the data, so a durable entry never points to data that is not
+        metrics.recordLatency("store.sync", System.nanoTime() - startTime);
+    }
+
+    @Override
+    public void sync(int blockId) throws IOException {
+        sync(); // Forcing the active segment and the index costs the same for one block as for all
+    }
+
+    @Override
+    public boolean hasSharedSync() {
+        return true;
+    }
+
+    @Override
+    public synchronized void delete(int blockId) throws IOException {
+        Location previous = index.remove(blockId);
+        if (previous != null) {
+            release(previous);
+            logEntry(DELETE, blockId, new Location(NO_SEGMENT, 0, 0, 0));
+        }
+    }
+
+    @Override
+    public String describe(int blockId) {
+        return directory.resolve("seg_*.dat").toString() + "#" + blockId;
+    }
+
+    /**
+     * Appends contents to the active segment, starting a new segment when they do not fit.
+     *
+     * @return The location of the contents.
+     */
+    private Location append(byte[] data, int crc) throws IOException {
+        if (active.end + data.length > active.capacity) {
+            active = createSegment(active.id + 1, Math.max(segmentSize, data.length));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long offset = active.end;
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, offset + buffer.position());
+        }
+        active.end += data.length;
+        active.liveBytes += data.length;
+        unsynced.add(active);
+        return new Location(active.id, offset, data.length, crc);
+    }
+
+    /**
+     * Points a block to new contents, making its previous contents garbage.
+     */
+    private void update(int blockId, Location location) throws IOException {
+        Location previous = index.put(blockId, location);
+        if (previous != null) {
+            release(previous);
+        }
+        logEntry(PUT, blockId, location);
+    }
+
+    /**
+     * Marks the space of contents that are no longer referenced as garbage.
+     */
+    private void release(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (segment != null) {
+            segment.liveBytes -= location.length;
+        }
+    }
+
+    /**
+     * Appends an entry to the index log.
+     */
+    private void logEntry(int op, int blockId, Location location) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putInt(op).putInt(blockId).putInt(location.segment).putLong(location.offset).putInt(location.length)
+                .putInt(location.crc).flip();
+        while (entry.hasRemaining()) {
+            indexLog.write(entry);
+        }
+        indexEntries++;
+    }
+
+    /**
+     * Creates a new segment file of the given size.
+     */
+    private Segment createSegment(int id, long capacity) throws IOException {
+        Path path = directory.resolve("seg_" + id + ".dat");
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(capacity);
+        }
+        Segment segment = new Segment(id, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                capacity);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Reads stored contents with a positional read, which is safe alongside concurrent appends.
+     */
+    private static byte[] readAt(Segment segment, Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, location.offset + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Computes the CRC32C of block contents.
+     */
+    private static int checksum(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Gets the bytes of sealed and active segments no longer referenced by the index.
+     *
+     * @return The garbage bytes.
+     */
+    public synchronized long getGarbageBytes() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            garbage += segment.end - segment.liveBytes;
+        }
+        return garbage;
+    }
+
+    /**
+     * Stops the compactor, waiting for a compaction in progress to finish. It is not interrupted, since interrupting
+     * a thread in the middle of a channel operation closes the channel.
+     *
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public void shutdown() throws InterruptedException {
+        stopped.countDown();
+        if (isAlive()) {
+            join();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (stopped.await(compactIntervalMillis, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.error("Segment compaction failed", e);
+            }
+        }
+    }
+
+    /**
+     * Compacts every sealed segment whose garbage is above the threshold, then rewrites the index log if it has
+     * grown well beyond the number of live blocks.
+     */
+    void compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && (segment.end - segment.liveBytes) * 100 >= segment.end * compactThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+        synchronized (this) {
+            if (indexEntries > 2L * index.size() + 1024) {
+                rewriteIndex();
+            }
+        }
+    }
+
+    /**
+     * Copies the live blocks of a segment to the active segment, then deletes the segment.
+     */
+    private void compact(Segment segment) throws IOException {
+        long startTime = System.nanoTime();
+        long moved = 0;
+        for (Map.Entry<Integer, Location> entry : index.entrySet()) {
+            if (entry.getValue().segment != segment.id) {
+                continue;
+            }
+            synchronized (this) {
+                Location location = index.get(entry.getKey());
+                if (location == null || location.segment != segment.id) {
+                    continue; // Overwritten or deleted since
+                }
+                byte[] data = readAt(segment, location);
+                update(entry.getKey(), append(data, location.crc));
+                moved += data.length;
+            }
+        }
+        synchronized (this) {
+            sync(); // The copies and their index entries are durable before the originals go away
+            segmentsLock.writeLock().lock();
+            try {
+                segments.remove(segment.id);
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            } finally {
+                segmentsLock.writeLock().unlock();
+            }
+        }
+        metrics.increment("store.compactions");
+        metrics.add("store.compactedBytes", moved);
+        metrics.recordLatency("store.compact", System.nanoTime() - startTime);
+        Log.debug("Compacted segment {}, moved {} bytes", segment.id, moved);
+    }
+
+    /**
+     * Replaces the index log with one PUT entry per live block. The caller holds the monitor of the store.
+     */
+    private void rewriteIndex() throws IOException {
+        sync();
+        Path rewritten = directory.resolve("index.log.tmp");
+        try (FileChannel channel = FileChannel.open(rewritten, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer entries = ByteBuffer.allocate(index.size() * ENTRY_SIZE);
+            for (Map.Entry<Integer, Location> entry : index.entrySet()) {
+                Location location = entry.getValue();
+                entries.putInt(PUT).putInt(entry.getKey()).putInt(location.segment).putLong(location.offset)
+                        .putInt(location.length).putInt(location.crc);
+            }
+            entries.flip();
+            while (entries.hasRemaining()) {
+                channel.write(entries);
+            }
+            channel.force(false);
+        }
+        indexLog.close();
+        Files.move(rewritten, directory.resolve("index.log"), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        indexLog = FileChannel.open(directory.resolve("index.log"), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        indexEntries = index.size();
+    }
+}
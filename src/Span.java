@@ -0,0 +1,119 @@
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Span class represents one timed step of a traced request, such as the NameNode parse or a DataNode disk read.
+ * Spans of the same request share a trace id and point at their parent span, so the steps recorded by
+ * the Client, the NameNode and the DataNodes can be stitched back together.
+ * Unsampled requests use the NOOP span, whose methods do nothing.
+ */
+public class Span {
+    public static final Span NOOP = new Span(null, 0, 0);
+
+    private final String name; // Name of the step, e.g. "namenode.alloc"
+    private final long traceId; // Identifier shared by every span of a request
+    private final long spanId; // Identifier of this span
+    private final long parentId; // Identifier of the parent span, 0 for the root
+    private final long startMicros; // Wall-clock start time in microseconds since the epoch
+    private final long startNanos; // Monotonic start time used for the duration
+
+    /**
+     * Constructor to start a span.
+     *
+     * @param name The name of the step.
+     * @param traceId The trace identifier.
+     * @param parentId The parent span identifier, or 0 for a root span.
+     */
+    Span(String name, long traceId, long parentId) {
+        this.name = name;
+        this.traceId = traceId;
+        this.parentId = parentId;
+        this.spanId = name == null ? 0 : ThreadLocalRandom.current().nextLong();
+        this.startMicros = name == null ? 0 : toMicros(Instant.now());
+        this.startNanos = name == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Converts a wall-clock instant to microseconds since the epoch.
+     */
+    private static long toMicros(Instant instant) {
+        return instant.getEpochSecond() * 1_000_000 + instant.getNano() / 1000;
+    }
+
+    /**
+     * Starts a child span of this span.
+     *
+     * @param childName The name of the child step.
+     * @return The child span, or NOOP if this request is not sampled.
+     */
+    public Span child(String childName) {
+        return this == NOOP ? NOOP : new Span(childName, traceId, spanId);
+    }
+
+    /**
+     * Adds the trace header for this span to a command sent to the next hop.
+     *
+     * @param command The command to send.
+     * @return The command carrying the trace header, or the command itself if this request is not sampled.
+     */
+    public String inject(String command) {
+        if (this == NOOP) {
+            return command;
+        }
+        return Headers.prepend("trace", Long.toHexString(traceId) + "-" + Long.toHexString(spanId), command);
+    }
+
+    /**
+     * Ends the span and hands it to the Tracer for writing.
+     */
+    public void end() {
+        if (this != NOOP) {
+            Tracer.record(this, (System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    /**
+     * Gets the name of the step.
+     * 
+     * @return The name of the step.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the trace identifier.
+     * 
+     * @return The trace identifier.
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * Gets the span identifier.
+     * 
+     * @return The span identifier.
+     */
+    public long getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Gets the parent span identifier.
+     * 
+     * @return The parent span identifier.
+     */
+    public long getParentId() {
+        return parentId;
+    }
+
+    /**
+     * Gets the start time in microseconds since the epoch.
+     * 
+     * @return The start time in microseconds since the epoch.
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+}
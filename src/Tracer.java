@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracer class starts, continues and records spans for end-to-end request tracing.
+ * The Client decides whether a request is sampled, using the "dfs.trace.sampleRate" system property
+ * (between 0.0 and 1.0, default 0.0), and every later hop records spans only for requests that carry a trace header.
+ *
+ * Finished spans are written by a background thread to "trace_<service>.json" (or the file named by "dfs.trace.file")
+ * in the Chrome Trace Event format, which chrome://tracing and Perfetto can open directly.
+ * Trace files from several processes can be loaded together since timestamps are wall-clock microseconds.
+ */
+public final class Tracer {
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("dfs.trace.sampleRate", "0.0"));
+    private static final long PID = ProcessHandle.current().pid();
+    private static final RingBuffer<String> buffer = new RingBuffer<>(Integer.getInteger("dfs.trace.bufferSize", 8192));
+    private static volatile String service = System.getProperty("dfs.trace.service", "dfs");
+    private static Writer output; // Opened lazily by the writer thread
+    private static volatile boolean started; // Whether the writer thread is running
+
+    private Tracer() {
+    }
+
+    /**
+     * Sets the name of this process as it appears in the trace file.
+     *
+     * @param name The service name, e.g. "namenode" or "datanode-65530".
+     */
+    public static void setService(String name) {
+        if (System.getProperty("dfs.trace.service") == null) {
+            service = name;
+        }
+    }
+
+    /**
+     * Starts a new trace, subject to the sample rate.
+     *
+     * @param name The name of the root span.
+     * @return The root span, or Span.NOOP if this request is not sampled.
+     */
+    public static Span startTrace(String name) {
+        if (SAMPLE_RATE <= 0 || ThreadLocalRandom.current().nextDouble() >= SAMPLE_RATE) {
+            return Span.NOOP;
+        }
+        return new Span(name, ThreadLocalRandom.current().nextLong(), 0);
+    }
+
+    /**
+     * Continues a trace received from the previous hop.
+     *
+     * @param header The value of the "trace" header, or null if the request carries none.
+     * @param name The name of the span for this hop.
+     * @return The span, or Span.NOOP if the request is not sampled or the header is malformed.
+     */
+    public static Span continueTrace(String header, String name) {
+        if (header == null) {
+            return Span.NOOP;
+        }
+        int separator = header.indexOf('-');
+        if (separator < 0) {
+            return Span.NOOP;
+        }
+        try {
+            long traceId = Long.parseUnsignedLong(header.substring(0, separator), 16);
+            long parentId = Long.parseUnsignedLong(header.substring(separator + 1), 16);
+            return new Span(name, traceId, parentId);
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring malformed trace header: {}", header);
+            return Span.NOOP;
+        }
+    }
+
+    /**
+     * Queues a finished span for writing.
+     *
+     * @param span The finished span.
+     * @param durationMicros The duration of the span in microseconds.
+     */
+    static void record(Span span, long durationMicros) {
+        if (!started) {
+            ensureStarted();
+        }
+        String event = "{\"name\":\"" + span.getName() + "\",\"cat\":\"dfs\",\"ph\":\"X\""
+                + ",\"ts\":" + span.getStartMicros() + ",\"dur\":" + durationMicros
+                + ",\"pid\":" + PID + ",\"tid\":" + Thread.currentThread().getId()
+                + ",\"args\":{\"traceId\":\"" + Long.toHexString(span.getTraceId())
+                + "\",\"spanId\":\"" + Long.toHexString(span.getSpanId())
+                + "\",\"parentId\":\"" + Long.toHexString(span.getParentId()) + "\"}}";
+        if (!buffer.offer(event)) {
+            Log.warn("Trace buffer full, dropped span: {}", span.getName());
+        }
+    }
+
+    /**
+     * Starts the writer thread on the first recorded span.
+     */
+    private static synchronized void ensureStarted() {
+        if (started) {
+            return;
+        }
+        started = true;
+        Thread writer = new Thread(() -> {
+            while (true) {
+                if (!drain()) {
+                    LockSupport.parkNanos(100_000_000);
+                }
+            }
+        }, "trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(Tracer::drain, "trace-flush"));
+        } catch (IllegalStateException e) {
+            // First span recorded while the JVM is already shutting down
+        }
+    }
+
+    /**
+     * Writes every queued span to the trace file.
+     *
+     * @return True if at least one span was written.
+     */
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        try {
+            String event;
+            while ((event = buffer.poll()) != null) {
+                if (output == null) {
+                    open();
+                } else {
+                    output.write(",\n");
+                }
+                output.write(event);
+                wrote = true;
+            }
+            if (wrote) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            Log.error("Unable to write trace file", e);
+        }
+        return wrote;
+    }
+
+    /**
+     * Creates the trace file and writes the JSON array header and the process name.
+     */
+    private static void open() throws IOException {
+        String filename = System.getProperty("dfs.trace.file", "trace_" + service + ".json");
+        output = Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8);
+        output.write("[\n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + PID
+                + ",\"args\":{\"name\":\"" + service + "\"}},\n");
+        Log.info("Writing trace spans to: {}", filename);
+    }
+}
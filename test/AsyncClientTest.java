@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * AsyncClientTest class checks the AsyncClient against a NameNode: requests beyond the limit on outstanding requests
+ * are queued without blocking the caller, batches are matched back to their files, and pooled connections lost to a
+ * NameNode restart are reopened for the next requests.
+ * Usage: "java -cp bin AsyncClientTest".
+ */
+public class AsyncClientTest {
+    private static final int BLOCK_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.blockSize=" + BLOCK_SIZE)) {
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            testQueueing();
+            testBatches();
+            testReconnect(cluster);
+        }
+        System.out.println("AsyncClientTest passed");
+    }
+
+    /**
+     * Sends many more reads than may be outstanding, the calls return before most of them are sent.
+     */
+    private static void testQueueing() throws Exception {
+        try (AsyncClient client = new AsyncClient("127.0.0.1", 5558, "queue-test", 1, 2, 30000)) {
+            client.append("queued", "0123456789abcdef").join();
+            List<CompletableFuture<String>> reads = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                reads.add(client.read("queued"));
+            }
+            long done = reads.stream().filter(CompletableFuture::isDone).count();
+            TestCluster.check(done < 100, "send blocked the caller: " + done + " of 200 reads done on return");
+            for (CompletableFuture<String> read : reads) {
+                TestCluster.checkEquals("0123456789abcdef", read.join(), "queued read");
+            }
+            TestCluster.checkEquals(0, client.getBlockCount("missing").join(), "blocks of a missing file");
+        }
+    }
+
+    /**
+     * Appends and reads a batch of files spread over several connections.
+     */
+    private static void testBatches() throws Exception {
+        try (AsyncClient client = new AsyncClient("127.0.0.1", 5558, "batch-test", 3, 4, 30000)) {
+            Map<String, String> contents = new LinkedHashMap<>();
+            Map<String, String> expected = new LinkedHashMap<>();
+            for (int i = 0; i < 10; i++) {
+                String block = String.valueOf(i).repeat(BLOCK_SIZE);
+                contents.put("batch-" + i, block.repeat(i % 3 + 1));
+                expected.put("batch-" + i, String.join(" ", Collections.nCopies(i % 3 + 1, block))); // READ separates blocks
+            }
+            client.appendAll(contents).join();
+            TestCluster.checkEquals(expected, client.readAll(contents.keySet()).join(), "readAll");
+            TestCluster.checkEquals(3, client.getBlockCount("batch-2").join(), "blocks of batch-2");
+        }
+    }
+
+    /**
+     * Restarts the NameNode under a client with two connections: requests fail while it is down, and succeed on
+     * reopened connections once it is back.
+     */
+    private static void testReconnect(TestCluster cluster) throws Exception {
+        try (AsyncClient client = new AsyncClient("127.0.0.1", 5558, "reconnect-test", 2, 4, 10000)) {
+            client.append("before", "before restart").join();
+            cluster.stop(5558);
+            TestCluster.sleep(200); // Let the readers see the connections close
+            TestCluster.check(isFailed(client.read("before")), "read from a stopped NameNode succeeded");
+            cluster.startNameNode(5558);
+            for (int i = 0; i < 4; i++) {
+                client.append("after-" + i, "after restart").join(); // Every connection of the pool in turn
+                TestCluster.checkEquals("after restart", client.read("after-" + i).join(), "read after the restart");
+            }
+        }
+    }
+
+    /**
+     * Waits for a request and tells whether it failed.
+     */
+    private static boolean isFailed(CompletableFuture<?> request) {
+        try {
+            request.join();
+            return false;
+        } catch (CompletionException e) {
+            return true;
+        }
+    }
+}
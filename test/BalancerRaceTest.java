@@ -0,0 +1,84 @@
+import java.util.List;
+
+/**
+ * BalancerRaceTest class checks that a DELETE racing a BlockBalancer move leaks no block and frees none twice, whether
+ * the file is deleted while its block is being copied or right after the copy replaced it.
+ * The balancer and the reclaimer run in this process against scripted DataNodes, so the DELETE can be made to land
+ * exactly between the copy and the swap in the file map.
+ * Usage: "java -cp bin BalancerRaceTest", with nothing listening on the DataNode ports.
+ */
+public class BalancerRaceTest {
+    private static final CompactBlockMap fileToBlockMap = new CompactBlockMap();
+    private static final Object mapLock = new Object();
+    private static BlockReclaimer reclaimer;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("dfs.reclaim.delayMs", "100");
+        Metrics metrics = new Metrics("BalancerRaceTest");
+        reclaimer = new BlockReclaimer(fileToBlockMap, metrics);
+        reclaimer.start();
+        BlockBalancer balancer = new BlockBalancer(fileToBlockMap, mapLock, reclaimer, () -> true, metrics);
+        ScriptedDataNode source = new ScriptedDataNode("D1", 50);
+        ScriptedDataNode target = new ScriptedDataNode("D2", 0);
+        ScriptedDataNode idle = new ScriptedDataNode("D3", 0);
+
+        // Deleted while the block is copied, the swap must fail and the copy be freed
+        addFile("copying", 0, 4);
+        target.onWrite = () -> delete("copying");
+        TestCluster.check(!balancer.balanceOnce(), "the balancer moved a block of a deleted file");
+        target.onWrite = null;
+        awaitFrees(source, List.of(0, 1, 2, 3), "source blocks of the file deleted during the copy");
+        awaitFrees(target, List.of(0), "copy of the block of the deleted file");
+
+        // Deleted right after the move, the source goes with the move and the copy with the DELETE
+        addFile("moved", 4, 4);
+        TestCluster.check(balancer.balanceOnce(), "the balancer did not move a block");
+        TestCluster.check(fileToBlockMap.getDataNodeId(fileToBlockMap.getBlock("moved", 0)).equals("D2"),
+                "the moved block is not referenced on its new DataNode");
+        delete("moved");
+        awaitFrees(source, List.of(0, 1, 2, 3, 4, 5, 6, 7), "source blocks of the file deleted after the move");
+        awaitFrees(target, List.of(0, 1), "copy of the moved block");
+
+        TestCluster.sleep(500); // Anything freed twice would have arrived by now
+        TestCluster.checkEquals("[0, 1, 2, 3, 4, 5, 6, 7]", source.sortedFrees().toString(), "blocks freed on the source");
+        TestCluster.checkEquals("[0, 1]", target.sortedFrees().toString(), "blocks freed on the target");
+        TestCluster.check(idle.sortedFrees().isEmpty(), "blocks freed on an uninvolved DataNode");
+        System.out.println("BalancerRaceTest passed");
+        System.exit(0);
+    }
+
+    /**
+     * Adds a file whose blocks are all stored on D1.
+     */
+    private static void addFile(String filename, int firstBlock, int blocks) {
+        long[] blockList = new long[blocks];
+        for (int i = 0; i < blocks; i++) {
+            blockList[i] = fileToBlockMap.pack("D1", firstBlock + i);
+        }
+        synchronized (mapLock) {
+            fileToBlockMap.append(filename, blockList);
+        }
+    }
+
+    /**
+     * Deletes a file the way the NameNode does.
+     */
+    private static void delete(String filename) {
+        long[] blockList;
+        synchronized (mapLock) {
+            blockList = fileToBlockMap.remove(filename);
+        }
+        reclaimer.reclaim(blockList);
+    }
+
+    /**
+     * Waits until a DataNode was asked to free the given blocks.
+     */
+    private static void awaitFrees(ScriptedDataNode dataNode, List<Integer> expected, String what) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!dataNode.sortedFrees().equals(expected) && System.currentTimeMillis() < deadline) {
+            TestCluster.sleep(50);
+        }
+        TestCluster.checkEquals(expected.toString(), dataNode.sortedFrees().toString(), what);
+    }
+}
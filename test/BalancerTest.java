@@ -0,0 +1,101 @@
+import java.util.Arrays;
+
+/**
+ * BalancerTest class checks BlockBalancer moves: a block is copied to the least used DataNode and the file map points
+ * at the copy, an empty block moves like any other, and a block whose move keeps failing does not stop the others
+ * from moving. It then balances a real cluster whose blocks all landed on one DataNode and reads every file back.
+ * Usage: "java -cp bin BalancerTest", with nothing listening on the DataNode and NameNode ports.
+ */
+public class BalancerTest {
+
+    public static void main(String[] args) throws Exception {
+        testScriptedMoves();
+        testCluster();
+        System.out.println("BalancerTest passed");
+        System.exit(0);
+    }
+
+    /**
+     * Moves the blocks of one file between scripted DataNodes, the first of which cannot be copied.
+     */
+    private static void testScriptedMoves() throws Exception {
+        CompactBlockMap fileToBlockMap = new CompactBlockMap();
+        Object mapLock = new Object();
+        Metrics metrics = new Metrics("BalancerTest");
+        BlockReclaimer reclaimer = new BlockReclaimer(fileToBlockMap, metrics);
+        BlockBalancer balancer = new BlockBalancer(fileToBlockMap, mapLock, reclaimer, () -> true, metrics);
+        ScriptedDataNode source = new ScriptedDataNode("D1", 50);
+        ScriptedDataNode target = new ScriptedDataNode("D2", 0);
+        ScriptedDataNode other = new ScriptedDataNode("D3", 10);
+        fileToBlockMap.append("file", new long[] {fileToBlockMap.pack("D1", 0), fileToBlockMap.pack("D1", 1),
+                fileToBlockMap.pack("D1", 2)});
+        source.emptyBlocks.add(1);
+        target.failWrite = content -> content.equals("block-0");
+
+        TestCluster.check(!balancer.balanceOnce(), "the move of a block that cannot be copied succeeded");
+        TestCluster.check(balancer.balanceOnce(), "the balancer kept trying the block that cannot be copied");
+        TestCluster.checkEquals("D2", fileToBlockMap.getDataNodeId(fileToBlockMap.getBlock("file", 1)), "DataNode of the empty block");
+        TestCluster.check(balancer.balanceOnce(), "the balancer did not move the last block");
+        TestCluster.checkEquals("D2", fileToBlockMap.getDataNodeId(fileToBlockMap.getBlock("file", 2)), "DataNode of the last block");
+        TestCluster.checkEquals("[, block-2]", target.getWrites().toString(), "contents copied to the target");
+        TestCluster.check(!balancer.balanceOnce(), "the move of a block that cannot be copied succeeded on retry");
+        TestCluster.checkEquals("D1", fileToBlockMap.getDataNodeId(fileToBlockMap.getBlock("file", 0)), "DataNode of the first block");
+        TestCluster.checkEquals(2L, metrics.snapshot().get("balancer.failures"), "balancer.failures");
+        source.close();
+        target.close();
+        other.close();
+    }
+
+    /**
+     * Appends single-block files, which all land on D1, and waits for the balancer to spread them.
+     */
+    private static void testCluster() throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.balancer.enabled=true", "-Ddfs.balancer.intervalMs=200",
+                "-Ddfs.balancer.bandwidthBytesPerSec=100000000", "-Ddfs.reclaim.delayMs=200")) {
+            cluster.startDataNodes();
+            int port = NameNode.getDataNodePort("D2");
+            String copyId = TestCluster.send(port, "Alloc"); // The copy of an empty block is written with nothing after the ID
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Write " + copyId + " "), "Write of an empty block");
+            TestCluster.checkEquals(null, TestCluster.send(port, "Read " + copyId), "Read of an empty block");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Free " + copyId), "Free of an empty block");
+            cluster.startNameNode(5558);
+            int files = 30;
+            for (int i = 0; i < files; i++) {
+                TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND balanced-" + i + " content-" + i), "APPEND");
+            }
+            long deadline = System.currentTimeMillis() + 20000;
+            int[] used;
+            while (!isBalanced(used = usage()) && System.currentTimeMillis() < deadline) {
+                TestCluster.sleep(200);
+            }
+            TestCluster.check(isBalanced(used), "DataNodes not balanced: " + Arrays.toString(used));
+            for (int i = 0; i < files; i++) {
+                TestCluster.checkEquals("content-" + i, TestCluster.send(5558, "READ balanced-" + i), "READ after balancing");
+            }
+        }
+    }
+
+    /**
+     * Gets the used blocks of every DataNode.
+     */
+    private static int[] usage() throws Exception {
+        int[] used = new int[NameNode.DATA_NODE_COUNT];
+        for (int i = 0; i < used.length; i++) {
+            used[i] = Integer.parseInt(TestCluster.send(NameNode.getDataNodePort("D" + (i + 1)), "Usage").split(" ")[0]);
+        }
+        return used;
+    }
+
+    /**
+     * Checks whether the usage of the DataNodes differs by at most the default threshold of 10 of 100 blocks.
+     */
+    private static boolean isBalanced(int[] used) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int blocks : used) {
+            min = Math.min(min, blocks);
+            max = Math.max(max, blocks);
+        }
+        return max - min <= 10;
+    }
+}
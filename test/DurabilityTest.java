@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DurabilityTest class checks the durability policies of a DataNode: NONE acknowledges without forcing, with or
+ * without coalescing buffered writes, SYNC forces every write, and GROUP forces concurrent writes together with one
+ * sync of the segment store, falling back to SYNC with the file store.
+ * Usage: "java -cp bin DurabilityTest".
+ */
+public class DurabilityTest {
+    private static final int PORT = NameNode.getDataNodePort("D1");
+
+    public static void main(String[] args) throws Exception {
+        testParse();
+        try (TestCluster cluster = new TestCluster("-Ddfs.durability=NONE")) {
+            cluster.startDataNodes();
+            testNone();
+        }
+        try (TestCluster cluster = new TestCluster("-Ddfs.durability=NONE", "-Ddfs.write.coalesce=true",
+                "-Ddfs.durability.windowMs=500")) {
+            cluster.startDataNodes();
+            testCoalescing();
+        }
+        try (TestCluster cluster = new TestCluster("-Ddfs.durability=SYNC")) {
+            cluster.startDataNodes();
+            testForcedWrites("SYNC");
+        }
+        try (TestCluster cluster = new TestCluster("-Ddfs.durability=GROUP", "-Ddfs.storage.engine=file")) {
+            cluster.startDataNodes();
+            testForcedWrites("GROUP with the file store");
+        }
+        try (TestCluster cluster = new TestCluster("-Ddfs.durability=GROUP", "-Ddfs.storage.engine=segment",
+                "-Ddfs.durability.windowMs=200")) {
+            cluster.startDataNodes();
+            testGroup();
+        }
+        System.out.println("DurabilityTest passed");
+    }
+
+    /**
+     * Parses policy names, falling back to NONE.
+     */
+    private static void testParse() {
+        TestCluster.checkEquals(Durability.SYNC, Durability.parse("sync"), "parse of sync");
+        TestCluster.checkEquals(Durability.GROUP, Durability.parse(" Group "), "parse of Group");
+        TestCluster.checkEquals(Durability.NONE, Durability.parse("fsync"), "parse of an unknown policy");
+    }
+
+    /**
+     * Writes blocks without any force.
+     */
+    private static void testNone() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            String blockId = write("none-" + i);
+            TestCluster.checkEquals("none-" + i, read(blockId), "read after an unforced write");
+        }
+        TestCluster.checkEquals(0L, TestCluster.stat(PORT, "write.force.count"), "forces with NONE");
+        TestCluster.checkEquals(0L, TestCluster.stat(PORT, "write.groupFlush.count"), "group flushes without coalescing");
+    }
+
+    /**
+     * Rewrites a block several times within one flush window, reads see the latest write before it is flushed.
+     */
+    private static void testCoalescing() throws Exception {
+        String blockId = TestCluster.send(PORT, "Alloc");
+        for (int i = 0; i < 5; i++) {
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(PORT, "Write " + blockId + " version-" + i), "buffered Write");
+            TestCluster.checkEquals("version-" + i, read(blockId), "read of a buffered write");
+        }
+        TestCluster.checkEquals(4L, TestCluster.stat(PORT, "write.coalesced"), "writes coalesced into the buffered one");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (TestCluster.stat(PORT, "write.groupFlush.count") == 0 && System.currentTimeMillis() < deadline) {
+            TestCluster.sleep(50);
+        }
+        TestCluster.checkEquals(1L, TestCluster.stat(PORT, "write.groupFlush.blocks"), "blocks flushed for five writes");
+        TestCluster.checkEquals("version-4", read(blockId), "read after the flush");
+        TestCluster.checkEquals(0L, TestCluster.stat(PORT, "write.force.count"), "forces with NONE");
+    }
+
+    /**
+     * Writes blocks one at a time and checks that each write forced its block.
+     */
+    private static void testForcedWrites(String policy) throws Exception {
+        for (int i = 0; i < 3; i++) {
+            String blockId = write("forced-" + i);
+            TestCluster.checkEquals("forced-" + i, read(blockId), "read after a forced write with " + policy);
+        }
+        TestCluster.checkEquals(3L, TestCluster.stat(PORT, "write.force.count"), "forces with " + policy);
+        TestCluster.checkEquals(0L, TestCluster.stat(PORT, "write.groupFlush.count"), "group flushes with " + policy);
+    }
+
+    /**
+     * Writes blocks from several threads at once, they are acknowledged after fewer syncs than writes.
+     */
+    private static void testGroup() throws Exception {
+        int writers = 8;
+        String[] blockIds = new String[writers];
+        for (int i = 0; i < writers; i++) {
+            blockIds[i] = TestCluster.send(PORT, "Alloc");
+        }
+        AtomicInteger completed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            int index = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    if ("COMPLETE".equals(TestCluster.send(PORT, "Write " + blockIds[index] + " group-" + index))) {
+                        completed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TestCluster.checkEquals(writers, completed.get(), "acknowledged group writes");
+        for (int i = 0; i < writers; i++) {
+            TestCluster.checkEquals("group-" + i, read(blockIds[i]), "read after a group write");
+        }
+        long flushes = TestCluster.stat(PORT, "write.groupFlush.count");
+        TestCluster.checkEquals((long) writers, TestCluster.stat(PORT, "write.groupFlush.blocks"), "blocks flushed");
+        TestCluster.check(flushes < writers, writers + " concurrent writes took " + flushes + " group flushes");
+        TestCluster.checkEquals(flushes, TestCluster.stat(PORT, "write.force.count"), "syncs, one per group flush");
+    }
+
+    /**
+     * Allocates a block on D1 and writes to it.
+     */
+    private static String write(String content) throws Exception {
+        String blockId = TestCluster.send(PORT, "Alloc");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(PORT, "Write " + blockId + " " + content), "Write");
+        return blockId;
+    }
+
+    /**
+     * Reads a block of D1.
+     */
+    private static String read(String blockId) throws Exception {
+        return TestCluster.send(PORT, "Read " + blockId);
+    }
+}
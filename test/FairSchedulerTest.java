@@ -0,0 +1,219 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FairSchedulerTest class checks the scheduling of NameNode requests on a single worker: clients are served in turn by
+ * their weights, a client whose requests turn out to be expensive falls behind, a full queue pushes out the newest
+ * request of the longest queue until every client holds one, and requests past their deadline or still queued at
+ * shutdown are answered without being executed.
+ * Usage: "java -cp bin FairSchedulerTest".
+ */
+public class FairSchedulerTest {
+    private static final int COST = FairScheduler.MIN_COST;
+
+    public static void main(String[] args) throws Exception {
+        testParseWeights();
+        testRoundRobin();
+        testWeights();
+        testSettledCost();
+        testAdmission();
+        testDeadline();
+        testShutdown();
+        System.out.println("FairSchedulerTest passed");
+    }
+
+    /**
+     * Parses weights, ignoring malformed entries and raising weights below 1.
+     */
+    private static void testParseWeights() {
+        TestCluster.checkEquals(Map.of("a", 4, "b", 1, "c", 2), FairScheduler.parseWeights("a:4, b:0,c:2,d:x,e"),
+                "parsed weights");
+        TestCluster.checkEquals(Map.of(), FairScheduler.parseWeights(""), "weights of an empty specification");
+    }
+
+    /**
+     * Queues six requests of one client before two of another, the second client is not kept waiting behind the first.
+     */
+    private static void testRoundRobin() throws Exception {
+        TestCluster.checkEquals(List.of("a", "b", "a", "b", "a", "a", "a", "a"),
+                run(Map.of(), new String[] {"a", "a", "a", "a", "a", "a", "b", "b"}, COST), "order of equal clients");
+    }
+
+    /**
+     * Queues the same requests of a client of weight 3 and a client of weight 1.
+     */
+    private static void testWeights() throws Exception {
+        TestCluster.checkEquals(List.of("a", "a", "a", "b", "a", "a", "a", "b"),
+                run(Map.of("a", 3), new String[] {"a", "a", "a", "a", "a", "a", "b", "b", "b", "b"}, COST).subList(0, 8),
+                "order of a client of weight 3 and one of weight 1");
+    }
+
+    /**
+     * Queues requests estimated at the minimum cost, those of one client actually move four times as many bytes.
+     */
+    private static void testSettledCost() throws Exception {
+        Metrics metrics = new Metrics("settled");
+        FairScheduler scheduler = new FairScheduler(1, 100, Map.of(), metrics);
+        CountDownLatch gate = block(scheduler);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 4; i++) {
+            submit(scheduler, "heavy", 0, 4 * COST, order, done);
+            submit(scheduler, "light", 0, COST, order, done);
+        }
+        gate.countDown();
+        TestCluster.check(done.await(10, TimeUnit.SECONDS), "requests not executed");
+        TestCluster.checkEquals(List.of("heavy", "light", "light", "light", "light", "heavy", "heavy", "heavy"), order,
+                "order of an expensive and a cheap client");
+        scheduler.shutdown();
+    }
+
+    /**
+     * Fills a queue of four with one client while the worker is busy, then submits from other clients.
+     */
+    private static void testAdmission() throws Exception {
+        Metrics metrics = new Metrics("admission");
+        FairScheduler scheduler = new FairScheduler(1, 4, Map.of(), metrics);
+        CountDownLatch gate = block(scheduler);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 4; i++) {
+            TestCluster.check(submit(scheduler, "flood", i, rejected, order), "request " + i + " of the flooding client");
+        }
+        TestCluster.checkEquals(4L, metrics.snapshot().get("scheduler.queued"), "queue length");
+        TestCluster.check(submit(scheduler, "other", 0, rejected, order), "request of another client in a full queue");
+        TestCluster.checkEquals(List.of("flood-3"), rejected, "requests pushed out");
+        TestCluster.check(!submit(scheduler, "flood", 4, rejected, order), "request of the flooding client in a full queue");
+        TestCluster.check(submit(scheduler, "third", 0, rejected, order), "request of a third client in a full queue");
+        TestCluster.checkEquals(List.of("flood-3", "flood-2"), rejected, "requests pushed out");
+        TestCluster.check(submit(scheduler, "fourth", 0, rejected, order), "request of a fourth client in a full queue");
+        TestCluster.checkEquals(List.of("flood-3", "flood-2", "flood-1"), rejected, "requests pushed out");
+        TestCluster.check(!submit(scheduler, "fifth", 0, rejected, order), "request once every client holds its share");
+        TestCluster.checkEquals(5L, metrics.snapshot().get("requests.rejected"), "rejected requests");
+
+        gate.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (order.size() < 4 && System.currentTimeMillis() < deadline) {
+            TestCluster.sleep(10);
+        }
+        TestCluster.checkEquals(List.of("flood-0", "other-0", "third-0", "fourth-0"), order, "executed requests");
+        TestCluster.checkEquals(0L, metrics.snapshot().get("scheduler.queued"), "queue length after the requests ran");
+        scheduler.shutdown();
+    }
+
+    /**
+     * Queues a request with a short deadline and one without behind a busy worker.
+     */
+    private static void testDeadline() throws Exception {
+        Metrics metrics = new Metrics("deadline");
+        FairScheduler scheduler = new FairScheduler(1, 100, Map.of(), metrics);
+        CountDownLatch gate = block(scheduler);
+        List<String> answers = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(2);
+        for (long timeoutMillis : new long[] {50, 0}) {
+            String name = "timeout-" + timeoutMillis;
+            scheduler.submit(new FairScheduler.Task("client", COST, timeoutMillis, () -> {
+                answers.add(name + " executed");
+                done.countDown();
+                return COST;
+            }, () -> {
+                answers.add(name + " expired");
+                done.countDown();
+            }, () -> answers.add(name + " rejected")));
+        }
+        TestCluster.sleep(150);
+        gate.countDown();
+        TestCluster.check(done.await(10, TimeUnit.SECONDS), "requests not answered");
+        TestCluster.checkEquals(List.of("timeout-50 expired", "timeout-0 executed"), answers, "answers");
+        TestCluster.checkEquals(1L, metrics.snapshot().get("requests.expired"), "expired requests");
+        scheduler.shutdown();
+    }
+
+    /**
+     * Shuts down with requests queued, they are rejected, as are requests submitted afterwards.
+     */
+    private static void testShutdown() throws Exception {
+        Metrics metrics = new Metrics("shutdown");
+        FairScheduler scheduler = new FairScheduler(1, 100, Map.of(), metrics);
+        CountDownLatch gate = block(scheduler);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> rejected = Collections.synchronizedList(new ArrayList<>());
+        submit(scheduler, "a", 0, rejected, order);
+        submit(scheduler, "b", 0, rejected, order);
+        scheduler.shutdown();
+        TestCluster.checkEquals(List.of("a-0", "b-0"), rejected, "requests rejected at shutdown");
+        TestCluster.check(!submit(scheduler, "a", 1, rejected, order), "request after shutdown");
+        gate.countDown();
+        TestCluster.sleep(100);
+        TestCluster.checkEquals(List.of(), order, "requests executed after shutdown");
+        TestCluster.checkEquals(3L, metrics.snapshot().get("requests.rejected"), "rejected requests");
+    }
+
+    /**
+     * Runs requests of the given clients, submitted in order while the only worker is busy.
+     *
+     * @return The clients in the order their requests were executed.
+     */
+    private static List<String> run(Map<String, Integer> weights, String[] clients, long cost) throws Exception {
+        FairScheduler scheduler = new FairScheduler(1, 100, weights, new Metrics("order"));
+        CountDownLatch gate = block(scheduler);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(clients.length);
+        for (String client : clients) {
+            submit(scheduler, client, 0, cost, order, done);
+        }
+        gate.countDown();
+        TestCluster.check(done.await(10, TimeUnit.SECONDS), "requests not executed");
+        scheduler.shutdown();
+        return order;
+    }
+
+    /**
+     * Occupies the worker of a scheduler until the returned gate is opened.
+     */
+    private static CountDownLatch block(FairScheduler scheduler) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        scheduler.submit(new FairScheduler.Task("blocker", COST, 0, () -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return COST;
+        }, () -> { }, () -> { }));
+        TestCluster.check(started.await(10, TimeUnit.SECONDS), "blocking request not started");
+        return gate;
+    }
+
+    /**
+     * Submits a request that records its client and moves the given number of bytes.
+     */
+    private static void submit(FairScheduler scheduler, String client, long timeoutMillis, long moved, List<String> order,
+            CountDownLatch done) {
+        TestCluster.check(scheduler.submit(new FairScheduler.Task(client, COST, timeoutMillis, () -> {
+            order.add(client);
+            done.countDown();
+            return moved;
+        }, done::countDown, done::countDown)), "request of " + client + " rejected");
+    }
+
+    /**
+     * Submits a request named after its client and index, recording it when executed or rejected.
+     *
+     * @return Whether the request was admitted.
+     */
+    private static boolean submit(FairScheduler scheduler, String client, int index, List<String> rejected,
+            List<String> order) {
+        String name = client + "-" + index;
+        return scheduler.submit(new FairScheduler.Task(client, COST, 0, () -> {
+            order.add(name);
+            return COST;
+        }, () -> { }, () -> rejected.add(name)));
+    }
+}
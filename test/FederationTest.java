@@ -0,0 +1,77 @@
+/**
+ * FederationTest class checks how two NameNodes split the namespace: MOVED redirects, the handoff of files with
+ * EXPORT, IMPORT and PENDING after a repartition, and that only peer NameNodes may send these requests.
+ * Usage: "java -cp bin FederationTest".
+ */
+public class FederationTest {
+    private static final String SECRET = "@secret=test-secret ";
+    private static final String OLD_TABLE = "127.0.0.1:5558";
+    private static final String NEW_TABLE = "127.0.0.1:5558,127.0.0.1:5559";
+    private static final int FILES = 40;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.namenodes=" + OLD_TABLE, "-Ddfs.federation.secret=test-secret",
+                "-Ddfs.federation.migrateRatePerSec=2")) {
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            cluster.startNameNode(5559);
+            for (int i = 0; i < FILES; i++) {
+                TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND fed-" + i + " content-" + i), "APPEND");
+            }
+
+            // A NameNode outside the table owns nothing and redirects to the owner
+            TestCluster.checkEquals("MOVED 127.0.0.1:5558", TestCluster.send(5559, "BLOCKS fed-0"), "BLOCKS on a non-owner");
+
+            // Federation requests need the secret, and a file can only be exported once it has a new owner
+            TestCluster.checkEquals("ERROR: Not a peer NameNode", TestCluster.send(5558, "EXPORT fed-0"), "EXPORT without secret");
+            TestCluster.checkEquals("ERROR: Not a peer NameNode", TestCluster.send(5558, "PARTITIONS " + NEW_TABLE),
+                    "PARTITIONS without secret");
+            TestCluster.checkEquals("ERROR: Not moved", TestCluster.send(5558, SECRET + "EXPORT fed-0"), "EXPORT of an owned file");
+
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, SECRET + "PARTITIONS " + NEW_TABLE), "PARTITIONS");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(5559, SECRET + "PARTITIONS " + NEW_TABLE), "PARTITIONS");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, SECRET + "PARTITIONS " + NEW_TABLE), "PARTITIONS again");
+            TestCluster.checkEquals("ERROR: Namespace migration in progress",
+                    TestCluster.send(5558, SECRET + "PARTITIONS 127.0.0.1:5559"), "PARTITIONS during a migration");
+
+            // The new owner pulls a file it is asked about before the migration gets to it
+            PartitionTable table = PartitionTable.parse(NEW_TABLE);
+            int moved = -1;
+            for (int i = FILES - 1; i >= 0 && moved < 0; i--) {
+                if (table.ownerOf("fed-" + i).equals("127.0.0.1:5559")) {
+                    moved = i;
+                }
+            }
+            TestCluster.check(moved >= 0, "no file moves to the new NameNode");
+            TestCluster.checkEquals("content-" + moved, TestCluster.send(5559, "READ fed-" + moved), "READ on the new owner");
+            TestCluster.checkEquals("MOVED 127.0.0.1:5559", TestCluster.send(5558, "BLOCKS fed-" + moved), "BLOCKS on the old owner");
+            TestCluster.checkEquals("BLOCKS", TestCluster.send(5558, SECRET + "EXPORT fed-" + moved), "EXPORT of a handed over file");
+
+            // IMPORT appends blocks written elsewhere to a file of the owner
+            int port = NameNode.getDataNodePort("D2");
+            String blockId = TestCluster.send(port, "Alloc");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Write " + blockId + " imported"), "Write");
+            String imported = "imported-0";
+            for (int i = 1; !table.ownerOf(imported).equals("127.0.0.1:5559"); i++) {
+                imported = "imported-" + i;
+            }
+            TestCluster.checkEquals("MOVED 127.0.0.1:5559", TestCluster.send(5558, SECRET + "IMPORT " + imported + " D2:" + blockId),
+                    "IMPORT on a non-owner");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(5559, SECRET + "IMPORT " + imported + " D2:" + blockId), "IMPORT");
+            TestCluster.checkEquals("imported", TestCluster.send(5559, "READ " + imported), "READ of an imported file");
+
+            // The old owner hands over the rest in the background, then every file is served by its owner
+            String pending = "PENDING 127.0.0.1:5559 " + OLD_TABLE + " " + NEW_TABLE;
+            long deadline = System.currentTimeMillis() + 60000;
+            while (!"PENDING 0".equals(TestCluster.send(5558, SECRET + pending)) && System.currentTimeMillis() < deadline) {
+                TestCluster.sleep(500);
+            }
+            TestCluster.checkEquals("PENDING 0", TestCluster.send(5558, SECRET + pending), "PENDING after the migration");
+            for (int i = 0; i < FILES; i++) {
+                int owner = PartitionTable.getPort(table.ownerOf("fed-" + i));
+                TestCluster.checkEquals("content-" + i, TestCluster.send(owner, "READ fed-" + i), "READ fed-" + i);
+            }
+        }
+        System.out.println("FederationTest passed");
+    }
+}
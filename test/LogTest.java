@@ -0,0 +1,171 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LogTest class checks the asynchronous logger: disabled statements never format their arguments, long arguments are
+ * truncated, the RingBuffer hands every element to the consumer exactly once, and a process that logs more than its
+ * buffer holds writes or reports every message before it exits.
+ * Usage: "java -cp bin LogTest". The output checks run in a child process, as the logger writes to the standard output
+ * of its process.
+ */
+public class LogTest {
+    private static final int MESSAGES = 20000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            logMessages();
+            return;
+        }
+        testLevels();
+        testTruncate();
+        testRingBuffer();
+        testOutput();
+        System.out.println("LogTest passed");
+    }
+
+    /**
+     * Changes the level and checks which statements are enabled and which arguments are formatted.
+     */
+    private static void testLevels() {
+        AtomicInteger formatted = new AtomicInteger();
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "argument";
+            }
+        };
+        Log.setLevel(Log.Level.WARN);
+        TestCluster.check(Log.isEnabled(Log.Level.ERROR) && Log.isEnabled(Log.Level.WARN), "ERROR and WARN enabled at WARN");
+        TestCluster.check(!Log.isEnabled(Log.Level.INFO) && !Log.isDebugEnabled(), "INFO and DEBUG disabled at WARN");
+        Log.debug("Disabled {}", argument);
+        Log.info("Disabled {} and {}", argument, argument);
+        TestCluster.checkEquals(0, formatted.get(), "arguments formatted by disabled statements");
+        Log.warn("Enabled {}", argument);
+        TestCluster.checkEquals(1, formatted.get(), "arguments formatted by an enabled statement");
+        Log.setLevel(Log.Level.DEBUG);
+        TestCluster.check(Log.isDebugEnabled(), "DEBUG enabled at DEBUG");
+        Log.setLevel(Log.Level.INFO);
+    }
+
+    /**
+     * Truncates values around the default maximum payload of 256 characters.
+     */
+    private static void testTruncate() {
+        TestCluster.checkEquals(null, Log.truncate(null), "truncate of null");
+        TestCluster.checkEquals("x".repeat(256), Log.truncate("x".repeat(256)), "truncate of a value at the limit");
+        TestCluster.checkEquals("x".repeat(256) + "...(+44 chars)", Log.truncate("x".repeat(300)), "truncate of a long value");
+    }
+
+    /**
+     * Offers elements from several producers into a small buffer while one consumer polls them.
+     */
+    private static void testRingBuffer() throws Exception {
+        RingBuffer<Integer> small = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            TestCluster.check(small.offer(i), "offer " + i + " into a buffer of 4");
+        }
+        TestCluster.check(!small.offer(4), "offer into a full buffer");
+        TestCluster.checkEquals(0, small.poll(), "oldest element");
+        TestCluster.check(small.offer(4), "offer after a poll");
+        for (int i = 1; i <= 4; i++) {
+            TestCluster.checkEquals(i, small.poll(), "element " + i);
+        }
+        TestCluster.check(small.isEmpty() && small.poll() == null, "buffer empty after polling everything");
+
+        RingBuffer<Integer> buffer = new RingBuffer<>(64);
+        int producers = 4;
+        int perProducer = 50000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            Thread thread = new Thread(() -> {
+                for (int i = first; i < first + perProducer; i++) {
+                    while (!buffer.offer(i)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        Set<Integer> received = new HashSet<>();
+        int[] lastByProducer = new int[producers];
+        Arrays.fill(lastByProducer, -1);
+        while (received.size() < producers * perProducer) {
+            Integer element = buffer.poll();
+            if (element == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            TestCluster.check(received.add(element), "element received twice: " + element);
+            int producer = element / perProducer;
+            TestCluster.check(element > lastByProducer[producer], "elements of one producer out of order: " + element);
+            lastByProducer[producer] = element;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TestCluster.check(buffer.isEmpty(), "buffer empty after every element was received");
+    }
+
+    /**
+     * Runs a child process that logs at WARN with a tiny buffer and a short payload limit, and checks its output.
+     */
+    private static void testOutput() throws Exception {
+        Process process = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Ddfs.log.level=WARN", "-Ddfs.log.maxPayload=10", "-Ddfs.log.bufferSize=16",
+                "-cp", System.getProperty("java.class.path"), "LogTest", "child").redirectErrorStream(true).start();
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        TestCluster.checkEquals(0, process.waitFor(), "exit code of the child");
+
+        String pattern = "\\d\\d:\\d\\d:\\d\\d\\.\\d{3} \\[WARN\\] \\[main\\] ";
+        TestCluster.check(lines.get(0).matches(pattern + "payload 0123456789\\.\\.\\.\\(\\+5 chars\\) and short"),
+                "first line: " + lines.get(0));
+        TestCluster.check(lines.get(1).matches("\\S+ \\[ERROR\\] \\[main\\] failed"), "error line: " + lines.get(1));
+        TestCluster.check(lines.get(2).startsWith("java.lang.IllegalStateException: cause"), "stack trace: " + lines.get(2));
+        TestCluster.check(lines.get(3).trim().startsWith("at LogTest.logMessages"), "stack frame: " + lines.get(3));
+        long written = 0;
+        long dropped = 0;
+        for (String line : lines) {
+            TestCluster.check(!line.contains("[INFO]") && !line.contains("[DEBUG]"), "disabled level logged: " + line);
+            if (line.contains("] message ")) {
+                written++;
+            } else if (line.startsWith("[WARN] Log buffer full, dropped ")) {
+                dropped += Long.parseLong(line.split(" ")[5]);
+            }
+        }
+        TestCluster.checkEquals((long) MESSAGES, written + dropped, "messages written or reported as dropped");
+        TestCluster.check(lines.get(lines.size() - 1).endsWith("last"), "the last message is flushed at exit");
+    }
+
+    /**
+     * Body of the child process: logs at every level, then more messages at once than the buffer holds.
+     */
+    private static void logMessages() {
+        Log.debug("hidden {}", "debug");
+        Log.info("hidden {}", "info");
+        Log.warn("payload {} and short", "0123456789abcde");
+        Log.error("failed", new IllegalStateException("cause"));
+        TestCluster.sleep(200); // Let the writer drain the buffer, so the lines above come out in order and are never dropped
+        for (int i = 0; i < MESSAGES; i++) {
+            Log.warn("message {}", i);
+        }
+        TestCluster.sleep(200);
+        Log.warn("last");
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * MemoryTierTest class checks the memory tier of a DataNode with room for four blocks: written and often read blocks
+ * are cached, a block read more often than the coldest cached one takes its slot, freed slots are reused without
+ * showing their old contents, and blocks that are no longer read are demoted in the background.
+ * Usage: "java -cp bin MemoryTierTest".
+ */
+public class MemoryTierTest {
+    private static final int SLOT_BYTES = 16;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.tier.memory.capacityBytes=" + 4 * SLOT_BYTES,
+                "-Ddfs.tier.memory.slotBytes=" + SLOT_BYTES, "-Ddfs.tier.promoteReads=2", "-Ddfs.tier.demoteIntervalMs=600000")) {
+            cluster.startDataNodes();
+            testEviction(NameNode.getDataNodePort("D1"));
+            testSlotReuse(NameNode.getDataNodePort("D2"));
+        }
+        try (TestCluster cluster = new TestCluster("-Ddfs.tier.memory.capacityBytes=" + 4 * SLOT_BYTES,
+                "-Ddfs.tier.memory.slotBytes=" + SLOT_BYTES, "-Ddfs.tier.demoteIntervalMs=1000")) {
+            cluster.startDataNodes();
+            testDemotion(NameNode.getDataNodePort("D1"));
+        }
+        System.out.println("MemoryTierTest passed");
+    }
+
+    /**
+     * Fills the tier, then reads a fifth block until it displaces the least read cached block.
+     */
+    private static void testEviction(int port) throws Exception {
+        String[] blockIds = new String[5];
+        for (int i = 0; i < blockIds.length; i++) {
+            blockIds[i] = write(port, block(i));
+        }
+        TestCluster.checkEquals(4L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached after five writes");
+        TestCluster.checkEquals(1L, TestCluster.stat(port, "tier.memory.full"), "writes finding the tier full");
+        TestCluster.checkEquals(64L, TestCluster.stat(port, "tier.memory.bytes"), "bytes cached");
+        int[] reads = {5, 3, 3, 1};
+        for (int i = 0; i < reads.length; i++) {
+            for (int j = 0; j < reads[i]; j++) {
+                TestCluster.checkEquals(block(i), read(port, blockIds[i]), "read of cached block " + i);
+            }
+        }
+        TestCluster.checkEquals(12L, TestCluster.stat(port, "tier.memory.hits"), "reads of cached blocks");
+
+        // Written once and read twice, the fifth block is read more often than the fourth, written and read once
+        TestCluster.checkEquals(block(4), read(port, blockIds[4]), "first read of block 4");
+        TestCluster.checkEquals(0L, TestCluster.stat(port, "tier.demotions"),
+                "demotions for a block read as often as the coldest");
+        TestCluster.checkEquals(block(4), read(port, blockIds[4]), "second read of block 4");
+        TestCluster.checkEquals(1L, TestCluster.stat(port, "tier.demotions"), "demotions for a block read more often");
+        long hits = TestCluster.stat(port, "tier.memory.hits");
+        TestCluster.checkEquals(block(4), read(port, blockIds[4]), "read of promoted block 4");
+        TestCluster.checkEquals(block(3), read(port, blockIds[3]), "read of demoted block 3");
+        TestCluster.checkEquals(hits + 1, TestCluster.stat(port, "tier.memory.hits"), "hits after reading blocks 4 and 3");
+        TestCluster.checkEquals(4L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached after the demotion");
+
+        String large = write(port, "x".repeat(SLOT_BYTES + 1));
+        TestCluster.checkEquals(1L, TestCluster.stat(port, "tier.memory.tooLarge"), "blocks larger than a slot");
+        TestCluster.checkEquals("x".repeat(SLOT_BYTES + 1), read(port, large), "read of a block larger than a slot");
+    }
+
+    /**
+     * Frees cached blocks and caches shorter blocks in their slots.
+     */
+    private static void testSlotReuse(int port) throws Exception {
+        String first = write(port, block(0));
+        String second = write(port, block(1));
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Free " + first + " " + second), "Free");
+        TestCluster.checkEquals(0L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached after Free");
+        TestCluster.checkEquals(0L, TestCluster.stat(port, "tier.memory.bytes"), "bytes cached after Free");
+        String shorter = write(port, "abc");
+        String other = write(port, "de");
+        TestCluster.checkEquals(2L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached in reused slots");
+        TestCluster.checkEquals("abc", read(port, shorter), "read of a shorter block in a reused slot");
+        TestCluster.checkEquals("de", read(port, other), "read of another shorter block in a reused slot");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Write " + shorter + " abcdef"), "Write over a cached block");
+        TestCluster.checkEquals("abcdef", read(port, shorter), "read of a rewritten cached block");
+        TestCluster.checkEquals(2L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached after the rewrite");
+    }
+
+    /**
+     * Keeps one of two cached blocks hot while access counts decay, the other one is demoted.
+     */
+    private static void testDemotion(int port) throws Exception {
+        String hot = write(port, block(0));
+        write(port, block(1));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (TestCluster.stat(port, "tier.memory.blocks") > 1 && System.currentTimeMillis() < deadline) {
+            TestCluster.checkEquals(block(0), read(port, hot), "read of the hot block");
+            TestCluster.sleep(20);
+        }
+        TestCluster.checkEquals(1L, TestCluster.stat(port, "tier.memory.blocks"), "blocks cached once the cold one is demoted");
+        long hits = TestCluster.stat(port, "tier.memory.hits");
+        TestCluster.checkEquals(block(0), read(port, hot), "read of the hot block after the demotion");
+        TestCluster.checkEquals(hits + 1, TestCluster.stat(port, "tier.memory.hits"), "hits after the demotion");
+    }
+
+    /**
+     * Allocates a block and writes to it.
+     */
+    private static String write(int port, String content) throws Exception {
+        String blockId = TestCluster.send(port, "Alloc");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Write " + blockId + " " + content), "Write");
+        return blockId;
+    }
+
+    /**
+     * Reads a block, null if it is empty.
+     */
+    private static String read(int port, String blockId) throws Exception {
+        return TestCluster.send(port, "Read " + blockId);
+    }
+
+    /**
+     * Gets the contents of a full block.
+     */
+    private static String block(int index) {
+        return String.valueOf((char) ('a' + index)).repeat(SLOT_BYTES);
+    }
+}
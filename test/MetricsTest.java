@@ -0,0 +1,145 @@
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * MetricsTest class checks the Metrics registry: counters add up under concurrent recording, gauges are sampled when
+ * read, latency histograms report their percentiles, and the values are the same over JMX and in the STATS responses
+ * of a NameNode and its DataNodes.
+ * Usage: "java -cp bin MetricsTest".
+ */
+public class MetricsTest {
+
+    public static void main(String[] args) throws Exception {
+        testCounters();
+        testGauges();
+        testLatencies();
+        testMBean();
+        try (TestCluster cluster = new TestCluster("-Ddfs.blockSize=16")) {
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            testStats();
+        }
+        System.out.println("MetricsTest passed");
+    }
+
+    /**
+     * Increments and adds to counters from several threads at once, and counts the UTF-8 bytes of lines.
+     */
+    private static void testCounters() throws Exception {
+        Metrics metrics = new Metrics("counters");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    metrics.increment("requests");
+                    metrics.add("bytes", 3);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        TestCluster.checkEquals(40000L, metrics.snapshot().get("requests"), "requests");
+        TestCluster.checkEquals(120000L, metrics.snapshot().get("bytes"), "bytes");
+
+        for (String line : Arrays.asList("ascii", "caf\u00e9", "\u20ac5", "\ud83d\ude00 smile", "")) {
+            Metrics lineMetrics = new Metrics("lines");
+            lineMetrics.addBytes("bytes.in", line);
+            TestCluster.checkEquals((long) line.getBytes(StandardCharsets.UTF_8).length,
+                    lineMetrics.snapshot().get("bytes.in"), "UTF-8 bytes of \"" + line + "\"");
+        }
+    }
+
+    /**
+     * Registers a gauge and reads it after its source changed.
+     */
+    private static void testGauges() {
+        Metrics metrics = new Metrics("gauges");
+        AtomicLong queued = new AtomicLong(5);
+        metrics.registerGauge("queue.length", queued::get);
+        TestCluster.checkEquals(5L, metrics.snapshot().get("queue.length"), "gauge");
+        queued.set(7);
+        TestCluster.checkEquals(7L, metrics.snapshot().get("queue.length"), "gauge after a change");
+        TestCluster.checkEquals("gauges queue.length=7", metrics.format(), "format");
+    }
+
+    /**
+     * Records 99 fast samples and a slow one, and checks the flattened histogram.
+     */
+    private static void testLatencies() {
+        Metrics metrics = new Metrics("latencies");
+        for (int i = 0; i < 99; i++) {
+            metrics.recordLatency("op.read", 1000);
+        }
+        metrics.recordLatency("op.read", 1_000_000);
+        Map<String, Long> values = metrics.snapshot();
+        TestCluster.checkEquals(100L, values.get("op.read.count"), "count");
+        TestCluster.checkEquals(10L, values.get("op.read.meanMicros"), "mean");
+        TestCluster.checkEquals(1L, values.get("op.read.p50Micros"), "p50, the upper bound of the 1024 ns bucket");
+        TestCluster.checkEquals(1L, values.get("op.read.p99Micros"), "p99");
+        TestCluster.checkEquals(1000L, values.get("op.read.maxMicros"), "max");
+        metrics.recordLatency("op.read", -5); // A clock that went backwards counts as 0
+        TestCluster.checkEquals(101L, metrics.snapshot().get("op.read.count"), "count after a negative sample");
+        TestCluster.checkEquals("latencies op.read.count=101 op.read.maxMicros=1000 op.read.meanMicros=10"
+                + " op.read.p50Micros=1 op.read.p99Micros=1", metrics.format(), "format, sorted by name");
+    }
+
+    /**
+     * Reads registered metrics through the platform MBean server.
+     */
+    private static void testMBean() throws Exception {
+        Metrics metrics = new Metrics("MetricsTest");
+        metrics.increment("requests");
+        metrics.registerGauge("open", () -> 3);
+        metrics.registerMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("DistributedFileSystem:type=Metrics,name=MetricsTest");
+        TestCluster.checkEquals(1L, server.getAttribute(name, "requests"), "JMX counter");
+        TestCluster.checkEquals(3L, server.getAttribute(name, "open"), "JMX gauge");
+        metrics.increment("requests");
+        TestCluster.checkEquals(2L, server.getAttribute(name, "requests"), "JMX counter after an increment");
+        List<String> attributes = new ArrayList<>();
+        for (MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes()) {
+            attributes.add(attribute.getName());
+        }
+        TestCluster.checkEquals(List.of("open", "requests"), attributes, "JMX attributes");
+        try {
+            server.getAttribute(name, "missing");
+            throw new AssertionError("JMX returned a metric that was never recorded");
+        } catch (AttributeNotFoundException expected) {
+            // Unknown metrics are reported as such
+        }
+    }
+
+    /**
+     * Appends and reads a file, then checks the operation counts in the STATS responses.
+     */
+    private static void testStats() throws Exception {
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND stats " + "x".repeat(32)), "APPEND");
+        TestCluster.checkEquals("x".repeat(16) + " " + "x".repeat(16), TestCluster.send(5558, "READ stats"), "READ");
+        TestCluster.check(TestCluster.send(5558, "STATS").startsWith("NameNode "), "STATS names the NameNode");
+        TestCluster.checkEquals(1L, TestCluster.stat(5558, "op.append.count"), "NameNode appends");
+        TestCluster.checkEquals(1L, TestCluster.stat(5558, "op.read.count"), "NameNode reads");
+        long writes = 0;
+        long reads = 0;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            int port = NameNode.getDataNodePort("D" + i);
+            TestCluster.check(TestCluster.send(port, "STATS").startsWith("DataNode-" + port + " "), "STATS names the DataNode");
+            writes += TestCluster.stat(port, "op.write.count");
+            reads += TestCluster.stat(port, "op.read.count");
+        }
+        TestCluster.checkEquals(2L, writes, "DataNode writes of two blocks");
+        TestCluster.checkEquals(2L, reads, "DataNode reads of two blocks");
+    }
+}
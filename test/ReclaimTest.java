@@ -0,0 +1,99 @@
+/**
+ * ReclaimTest class checks DELETE and TRUNCATE on a NameNode and FREE of several blocks on a DataNode: the file map
+ * changes at once, and the dropped blocks are freed on their DataNodes after the grace period.
+ * Usage: "java -cp bin ReclaimTest".
+ */
+public class ReclaimTest {
+    private static final int BLOCK_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.blockSize=" + BLOCK_SIZE, "-Ddfs.reclaim.delayMs=300")) {
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            testDelete();
+            testTruncate();
+            testFree();
+            testClient();
+        }
+        System.out.println("ReclaimTest passed");
+    }
+
+    /**
+     * Deletes a file of three blocks, then deletes it again.
+     */
+    private static void testDelete() throws Exception {
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND deleted " + content(3)), "APPEND");
+        TestCluster.awaitUsedBlocks(3, "after APPEND");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "DELETE deleted"), "DELETE");
+        TestCluster.checkEquals("0", TestCluster.send(5558, "BLOCKS deleted"), "BLOCKS of a deleted file");
+        TestCluster.checkEquals("ERROR: No such file", TestCluster.send(5558, "DELETE deleted"), "DELETE of a deleted file");
+        TestCluster.awaitUsedBlocks(0, "after DELETE");
+    }
+
+    /**
+     * Truncates a file of five blocks to two, then to more blocks than it has.
+     */
+    private static void testTruncate() throws Exception {
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND truncated " + content(5)), "APPEND");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "TRUNCATE truncated 2"), "TRUNCATE");
+        TestCluster.checkEquals("2", TestCluster.send(5558, "BLOCKS truncated"), "BLOCKS after TRUNCATE");
+        TestCluster.checkEquals(block(0) + " " + block(1), TestCluster.send(5558, "READ truncated"), "READ after TRUNCATE");
+        TestCluster.awaitUsedBlocks(2, "after TRUNCATE");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "TRUNCATE truncated 9"), "TRUNCATE beyond the end");
+        TestCluster.checkEquals("2", TestCluster.send(5558, "BLOCKS truncated"), "BLOCKS after TRUNCATE beyond the end");
+        TestCluster.checkEquals("ERROR: No such file", TestCluster.send(5558, "TRUNCATE missing 1"), "TRUNCATE of a missing file");
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "DELETE truncated"), "DELETE");
+        TestCluster.awaitUsedBlocks(0, "after DELETE of the truncated file");
+    }
+
+    /**
+     * Frees three blocks of a DataNode with one command, then frees them again.
+     */
+    private static void testFree() throws Exception {
+        int port = NameNode.getDataNodePort("D2");
+        String[] blockIds = new String[3];
+        for (int i = 0; i < blockIds.length; i++) {
+            blockIds[i] = TestCluster.send(port, "Alloc");
+            TestCluster.checkEquals("COMPLETE", TestCluster.send(port, "Write " + blockIds[i] + " " + block(i)), "Write");
+        }
+        TestCluster.checkEquals("3 100", TestCluster.send(port, "Usage"), "Usage after Alloc");
+        String free = "Free " + String.join(" ", blockIds);
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(port, free), "Free of several blocks");
+        TestCluster.checkEquals("0 100", TestCluster.send(port, "Usage"), "Usage after Free");
+        TestCluster.checkEquals("ERROR: No such block: " + String.join(" ", blockIds), TestCluster.send(port, free),
+                "Free of free blocks");
+    }
+
+    /**
+     * Deletes and truncates through the AsyncClient, which reports a missing file as false rather than as an error.
+     */
+    private static void testClient() throws Exception {
+        try (AsyncClient client = new AsyncClient("127.0.0.1", 5558, "reclaim-test", 1, 16, 10000)) {
+            client.append("client", content(3)).get();
+            TestCluster.check(client.truncate("client", 1).get(), "truncate of an existing file");
+            TestCluster.check(client.getBlockCount("client").get() == 1, "block count after truncate");
+            TestCluster.check(client.delete("client").get(), "delete of an existing file");
+            TestCluster.check(!client.delete("client").get(), "delete of a missing file");
+            TestCluster.check(!client.truncate("client", 1).get(), "truncate of a missing file");
+        }
+        TestCluster.awaitUsedBlocks(0, "after deleting through the client");
+    }
+
+    /**
+     * Builds the content of a file whose blocks each repeat their own letter.
+     */
+    private static String content(int blocks) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < blocks; i++) {
+            content.append(block(i));
+        }
+        return content.toString();
+    }
+
+    /**
+     * Builds the content of one block of a file built by content().
+     */
+    private static String block(int index) {
+        return String.valueOf((char) ('a' + index)).repeat(BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * ScriptedDataNode class stands in for a DataNode in tests that drive NameNode components in-process. It allocates
+ * blocks in order, answers reads with fixed contents, fails the writes a test asks it to and records the blocks it is
+ * asked to free, so a test can make a step land exactly where it wants.
+ */
+class ScriptedDataNode extends Thread {
+    private final ServerSocket serverSocket;
+    private final int used; // Used blocks reported besides the allocated and not freed ones
+    private final AtomicInteger allocated = new AtomicInteger(); // Blocks allocated so far
+    private final List<Integer> frees = Collections.synchronizedList(new ArrayList<>()); // Blocks freed, in order
+    private final List<String> writes = Collections.synchronizedList(new ArrayList<>()); // Contents written, in order
+    final Set<Integer> emptyBlocks = ConcurrentHashMap.newKeySet(); // Blocks read back as empty
+    volatile Runnable onWrite; // Runs before a write is acknowledged, null for none
+    volatile Predicate<String> failWrite = content -> false; // Whether to fail a write of the given contents
+
+    /**
+     * Constructor to listen on the port of a DataNode.
+     *
+     * @param dataNodeId The DataNode identifier, e.g. "D1".
+     * @param used The number of used blocks to report besides the allocated ones.
+     * @throws IOException If the port is taken.
+     */
+    ScriptedDataNode(String dataNodeId, int used) throws IOException {
+        super("scripted-" + dataNodeId);
+        this.serverSocket = new ServerSocket(NameNode.getDataNodePort(dataNodeId));
+        this.used = used;
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Gets the blocks this DataNode was asked to free, in ascending order.
+     *
+     * @return The block IDs.
+     */
+    List<Integer> sortedFrees() {
+        List<Integer> sorted;
+        synchronized (frees) {
+            sorted = new ArrayList<>(frees);
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Gets the contents written to this DataNode, in order.
+     *
+     * @return The contents.
+     */
+    List<String> getWrites() {
+        synchronized (writes) {
+            return new ArrayList<>(writes);
+        }
+    }
+
+    /**
+     * Stops listening, so that the port can be used again.
+     *
+     * @throws IOException If the socket cannot be closed.
+     */
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = serverSocket.accept();
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                String line = in.readLine();
+                if (line == null) {
+                    continue;
+                }
+                String[] command = line.split(" ", 2);
+                String arguments = command.length > 1 ? command[1] : "";
+                switch (command[0].toUpperCase()) {
+                    case "USAGE":
+                        out.println((used + allocated.get() - frees.size()) + " 100");
+                        break;
+                    case "ALLOC":
+                        out.println(allocated.getAndIncrement());
+                        break;
+                    case "READ":
+                        if (!emptyBlocks.contains(Integer.parseInt(arguments))) {
+                            out.print("block-" + arguments); // Like a DataNode, contents end with the connection
+                            out.flush();
+                        }
+                        break;
+                    case "WRITE":
+                        String[] write = arguments.split(" ", 2);
+                        String content = write.length > 1 ? write[1] : "";
+                        if (failWrite.test(content)) {
+                            out.println("ERROR: Write failed");
+                            break;
+                        }
+                        Runnable hook = onWrite;
+                        if (hook != null) {
+                            hook.run();
+                        }
+                        writes.add(content);
+                        out.println("COMPLETE");
+                        break;
+                    case "FREE":
+                        for (String blockId : arguments.split(" ")) {
+                            frees.add(Integer.parseInt(blockId));
+                        }
+                        out.println("COMPLETE");
+                        break;
+                    default:
+                        out.println("ERROR: Unknown command");
+                }
+            } catch (IOException e) {
+                return; // Closed
+            }
+        }
+    }
+}
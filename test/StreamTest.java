@@ -0,0 +1,145 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StreamTest class checks the client streams: an AppendOutputStream ships block-sized appends, flushes the remainder on
+ * flush() and close() and in the background, and rejects line breaks, and a ReadAheadInputStream returns the blocks of
+ * a file back to back, with and without read-ahead.
+ * Usage: "java -cp bin StreamTest".
+ */
+public class StreamTest {
+    private static final int BLOCK_SIZE = 16;
+
+    public static void main(String[] args) throws Exception {
+        try (TestCluster cluster = new TestCluster("-Ddfs.blockSize=" + BLOCK_SIZE)) {
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            testAppends();
+            testPeriodicFlush();
+            testLineBreaks();
+            testReads();
+        }
+        System.out.println("StreamTest passed");
+    }
+
+    /**
+     * Appends small records and checks how many APPEND requests and blocks they took.
+     */
+    private static void testAppends() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        AppendOutputStream out = new AppendOutputStream("127.0.0.1", 5558, "appended", BLOCK_SIZE, 0);
+        for (int i = 0; i < 5; i++) {
+            write(out, "r" + i, expected);
+        }
+        TestCluster.checkEquals(0L, TestCluster.stat(5558, "op.append.count"), "appends of records smaller than a block");
+        TestCluster.checkEquals("0", TestCluster.send(5558, "BLOCKS appended"), "blocks before the flush");
+        out.flush();
+        TestCluster.checkEquals(1L, TestCluster.stat(5558, "op.append.count"), "appends after the flush");
+        out.flush();
+        TestCluster.checkEquals(1L, TestCluster.stat(5558, "op.append.count"), "appends after a flush with nothing buffered");
+
+        for (int i = 0; i < 10; i++) {
+            write(out, "rec" + i, expected); // 40 bytes, two full blocks shipped as they fill up and 8 bytes left
+        }
+        TestCluster.checkEquals(3L, TestCluster.stat(5558, "op.append.count"), "appends after two full blocks");
+        out.close();
+        out.close();
+        TestCluster.checkEquals(4L, TestCluster.stat(5558, "op.append.count"), "appends after the close");
+        TestCluster.checkEquals("4", TestCluster.send(5558, "BLOCKS appended"), "blocks of the file");
+        TestCluster.checkEquals(expected.toString(), readAll("appended", true), "contents of the file");
+        try {
+            out.write('x');
+            throw new AssertionError("write to a closed stream");
+        } catch (IOException expectedFailure) {
+            // A closed stream rejects writes
+        }
+
+        try (AppendOutputStream opened = Client.openAppendStream("opened")) {
+            opened.write("through the client".getBytes(StandardCharsets.UTF_8));
+        }
+        TestCluster.checkEquals("through the client", readAll("opened", false), "file appended through the Client");
+    }
+
+    /**
+     * Writes less than a block without flushing, the background flush ships it.
+     */
+    private static void testPeriodicFlush() throws Exception {
+        try (AppendOutputStream out = new AppendOutputStream("127.0.0.1", 5558, "periodic", BLOCK_SIZE, 100)) {
+            out.write("tick".getBytes(StandardCharsets.UTF_8));
+            long deadline = System.currentTimeMillis() + 5000;
+            while ("0".equals(TestCluster.send(5558, "BLOCKS periodic")) && System.currentTimeMillis() < deadline) {
+                TestCluster.sleep(50);
+            }
+            TestCluster.checkEquals("tick", TestCluster.send(5558, "READ periodic"), "contents after the periodic flush");
+        }
+        TestCluster.checkEquals("1", TestCluster.send(5558, "BLOCKS periodic"), "blocks after the close");
+    }
+
+    /**
+     * Writes line breaks, which are rejected without shipping or buffering any of the bytes around them.
+     */
+    private static void testLineBreaks() throws Exception {
+        try (AppendOutputStream out = new AppendOutputStream("127.0.0.1", 5558, "lines", BLOCK_SIZE, 0)) {
+            for (String rejected : new String[] {"one\ntwo", "three\r"}) {
+                try {
+                    out.write(rejected.getBytes(StandardCharsets.UTF_8));
+                    throw new AssertionError("line break appended: " + rejected);
+                } catch (IOException expected) {
+                    // The protocol is line-oriented
+                }
+            }
+            out.write("kept".getBytes(StandardCharsets.UTF_8));
+        }
+        TestCluster.checkEquals("kept", TestCluster.send(5558, "READ lines"), "contents after rejected writes");
+    }
+
+    /**
+     * Reads a file of several blocks byte by byte and in chunks, with and without read-ahead, and a missing file.
+     */
+    private static void testReads() throws Exception {
+        String content = "abcdefghijklmnopqrstuvwxyz0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND read " + content), "APPEND");
+        TestCluster.checkEquals("4", TestCluster.send(5558, "BLOCKS read"), "blocks of the file");
+        for (boolean readAhead : new boolean[] {true, false}) {
+            TestCluster.checkEquals(content, readAll("read", readAhead), "chunked read, read-ahead " + readAhead);
+            try (InputStream in = new ReadAheadInputStream("127.0.0.1", 5558, "read", readAhead)) {
+                StringBuilder read = new StringBuilder();
+                int b;
+                while ((b = in.read()) != -1) {
+                    read.append((char) b);
+                }
+                TestCluster.checkEquals(content, read.toString(), "read byte by byte, read-ahead " + readAhead);
+                TestCluster.checkEquals(-1, in.read(new byte[8], 0, 8), "chunked read at the end");
+                TestCluster.checkEquals(0, in.available(), "available at the end");
+            }
+        }
+        try (InputStream in = Client.openReadStream("missing", true)) {
+            TestCluster.checkEquals(-1, in.read(), "read of a missing file");
+        }
+    }
+
+    /**
+     * Writes a record to an append stream and to the expected contents.
+     */
+    private static void write(AppendOutputStream out, String record, StringBuilder expected) throws IOException {
+        out.write(record.getBytes(StandardCharsets.UTF_8));
+        expected.append(record);
+    }
+
+    /**
+     * Reads a whole file through a ReadAheadInputStream in small chunks.
+     */
+    private static String readAll(String filename, boolean readAhead) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        try (InputStream in = new ReadAheadInputStream("127.0.0.1", 5558, filename, readAhead)) {
+            byte[] chunk = new byte[5];
+            int length;
+            while ((length = in.read(chunk, 0, chunk.length)) != -1) {
+                read.write(chunk, 0, length);
+            }
+        }
+        return read.toString(StandardCharsets.UTF_8);
+    }
+}
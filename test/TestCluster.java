@@ -0,0 +1,235 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * TestCluster class runs DataNodes and NameNodes for the behaviour tests as separate processes, the way they are
+ * deployed, in a scratch directory so that every test starts from empty block stores.
+ * The tests are plain programs that exit with an error on the first failed check. Compile and run them after the
+ * sources, with nothing else listening on the DataNode and NameNode ports, e.g.
+ * "javac -cp bin -d bin test/*.java" and "java -cp bin ReclaimTest".
+ */
+class TestCluster implements AutoCloseable {
+    private final Path directory; // Scratch directory the processes run in
+    private final List<String> options; // JVM options passed to every process
+    private final Map<Integer, Process> processes = new LinkedHashMap<>(); // Running processes by port
+
+    /**
+     * Constructor to create an empty cluster.
+     *
+     * @param options JVM options passed to every process, e.g. "-Ddfs.blockSize=16".
+     * @throws IOException If the scratch directory cannot be created.
+     */
+    TestCluster(String... options) throws IOException {
+        this.directory = Files.createTempDirectory("dfs-test");
+        this.options = List.of(options);
+    }
+
+    /**
+     * Gets the scratch directory the processes run in, where they write their block stores and trace files.
+     *
+     * @return The directory.
+     */
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Starts the DataNodes D1 to D3 and waits until they accept connections.
+     *
+     * @throws IOException If a DataNode cannot be started.
+     */
+    void startDataNodes() throws IOException {
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            start("DataNode", NameNode.getDataNodePort("D" + i));
+        }
+    }
+
+    /**
+     * Starts a NameNode and waits until it accepts connections.
+     *
+     * @param port The port of the NameNode.
+     * @throws IOException If the NameNode cannot be started.
+     */
+    void startNameNode(int port) throws IOException {
+        start("NameNode", port);
+    }
+
+    /**
+     * Stops the process listening on a port, closing every connection to it.
+     *
+     * @param port The port of the DataNode or NameNode.
+     */
+    void stop(int port) {
+        Process process = processes.remove(port);
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Starts one process of the cluster.
+     */
+    private void start(String mainClass, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        command.add(String.valueOf(port));
+        processes.put(port, new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve(mainClass + "-" + port + ".log").toFile()))
+                .start());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException(mainClass + " did not start on port " + port, e);
+                }
+                sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Sends one request on its own connection and reads the response line.
+     *
+     * @param port The port of the DataNode or NameNode.
+     * @param request The request.
+     * @return The response line, or null if none was sent.
+     * @throws IOException If the node cannot be reached.
+     */
+    static String send(int port, String request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            socket.setSoTimeout(30000);
+            out.println(request);
+            String response = in.readLine();
+            out.println("."); // Ends the session of a NameNode, DataNodes have closed it already
+            return response;
+        }
+    }
+
+    /**
+     * Gets the number of used blocks of all DataNodes.
+     *
+     * @return The number of blocks.
+     * @throws IOException If a DataNode cannot be reached.
+     */
+    static int usedBlocks() throws IOException {
+        int used = 0;
+        for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+            used += Integer.parseInt(send(NameNode.getDataNodePort("D" + i), "Usage").split(" ")[0]);
+        }
+        return used;
+    }
+
+    /**
+     * Gets a counter or gauge from the STATS response of a DataNode or NameNode.
+     *
+     * @param port The port of the node.
+     * @param name The metric name.
+     * @return The value, 0 if the metric has not been recorded yet.
+     * @throws IOException If the node cannot be reached.
+     */
+    static long stat(int port, String name) throws IOException {
+        for (String entry : send(port, "STATS").split(" ")) {
+            if (entry.startsWith(name + "=")) {
+                return Long.parseLong(entry.substring(name.length() + 1));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Waits until all DataNodes together use the given number of blocks, as blocks are freed in the background.
+     *
+     * @param expected The number of used blocks.
+     * @param what What is being checked, for the failure message.
+     * @throws IOException If a DataNode cannot be reached.
+     */
+    static void awaitUsedBlocks(int expected, String what) throws IOException {
+        long deadline = System.currentTimeMillis() + 10000;
+        int used;
+        while ((used = usedBlocks()) != expected && System.currentTimeMillis() < deadline) {
+            sleep(100);
+        }
+        check(used == expected, what + ": expected " + expected + " used blocks, found " + used);
+    }
+
+    /**
+     * Fails the test if a condition does not hold.
+     *
+     * @param condition The condition.
+     * @param message What went wrong.
+     */
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Fails the test if a response or value is not the expected one.
+     *
+     * @param expected The expected value.
+     * @param actual The actual value.
+     * @param what The request or value, for the failure message.
+     */
+    static void checkEquals(Object expected, Object actual, String what) {
+        check(Objects.equals(expected, actual), what + ": expected \"" + expected + "\", got \"" + actual + "\"");
+    }
+
+    /**
+     * Sleeps without having to handle interruption, tests are never interrupted.
+     */
+    static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops every process and deletes the scratch directory along with the process logs.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Process process : processes.values()) {
+            process.destroy();
+        }
+        for (Process process : processes.values()) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
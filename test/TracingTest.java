@@ -0,0 +1,117 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * TracingTest class checks request headers and tracing: headers are split off the commands they precede, trace headers
+ * are injected and continued with the right ids, and a traced READ leaves spans of the same trace in the trace files
+ * of the NameNode and the DataNode that served the block.
+ * Usage: "java -cp bin TracingTest".
+ */
+public class TracingTest {
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("dfs.trace.sampleRate", "1.0"); // Read once by the Tracer, so before it is first used
+        testHeaders();
+        testSpans();
+        try (TestCluster cluster = new TestCluster()) {
+            System.setProperty("dfs.trace.file", cluster.getDirectory().resolve("trace_test.json").toString());
+            cluster.startDataNodes();
+            cluster.startNameNode(5558);
+            testTracedRead(cluster.getDirectory());
+        }
+        System.out.println("TracingTest passed");
+    }
+
+    /**
+     * Parses commands with and without headers.
+     */
+    private static void testHeaders() {
+        Headers plain = Headers.parse("READ file.txt");
+        TestCluster.checkEquals("READ file.txt", plain.getBody(), "body without headers");
+        TestCluster.checkEquals(null, plain.get("trace"), "header of a command without headers");
+
+        Headers tagged = Headers.parse("@trace=1f-2e @client=c1 APPEND file.txt @not-a-header");
+        TestCluster.checkEquals("1f-2e", tagged.get("trace"), "trace header");
+        TestCluster.checkEquals("c1", tagged.get("client"), "client header");
+        TestCluster.checkEquals("APPEND file.txt @not-a-header", tagged.getBody(), "body after headers");
+
+        Headers malformed = Headers.parse("@novalue @=empty-key READ x");
+        TestCluster.checkEquals("READ x", malformed.getBody(), "body after malformed headers");
+        TestCluster.checkEquals(null, malformed.get("novalue"), "header without a value");
+
+        TestCluster.checkEquals("", Headers.parse("@a=1").getBody(), "body of a line of headers only");
+        TestCluster.checkEquals(null, Headers.parse(null).getBody(), "body of no line");
+        String command = Headers.prepend("req", "7", Headers.prepend("timeout", "100", "BLOCKS f"));
+        TestCluster.checkEquals("@req=7 @timeout=100 BLOCKS f", command, "prepended headers");
+        TestCluster.checkEquals("7", Headers.parse(command).get("req"), "prepended header");
+        TestCluster.checkEquals("BLOCKS f", Headers.parse(command).getBody(), "body after prepended headers");
+    }
+
+    /**
+     * Starts, injects and continues spans.
+     */
+    private static void testSpans() {
+        TestCluster.checkEquals("READ f", Span.NOOP.inject("READ f"), "inject of an unsampled span");
+        TestCluster.check(Span.NOOP.child("child") == Span.NOOP, "child of an unsampled span");
+        TestCluster.check(Tracer.continueTrace(null, "hop") == Span.NOOP, "hop without a trace header");
+        TestCluster.check(Tracer.continueTrace("1f2e", "hop") == Span.NOOP, "hop with a header without separator");
+        TestCluster.check(Tracer.continueTrace("xyz-1", "hop") == Span.NOOP, "hop with a malformed header");
+
+        Span root = Tracer.startTrace("test.root");
+        TestCluster.check(root != Span.NOOP, "root span sampled at rate 1.0");
+        TestCluster.checkEquals(0L, root.getParentId(), "parent of a root span");
+        Span child = root.child("test.child");
+        TestCluster.checkEquals(root.getTraceId(), child.getTraceId(), "trace of a child span");
+        TestCluster.checkEquals(root.getSpanId(), child.getParentId(), "parent of a child span");
+
+        Headers headers = Headers.parse(child.inject("READ f"));
+        TestCluster.checkEquals("READ f", headers.getBody(), "body of an injected command");
+        Span hop = Tracer.continueTrace(headers.get("trace"), "test.hop");
+        TestCluster.checkEquals("test.hop", hop.getName(), "name of the next hop");
+        TestCluster.checkEquals(root.getTraceId(), hop.getTraceId(), "trace of the next hop");
+        TestCluster.checkEquals(child.getSpanId(), hop.getParentId(), "parent of the next hop");
+    }
+
+    /**
+     * Sends a traced READ and waits for the spans of its trace in the trace files of the NameNode and a DataNode.
+     */
+    private static void testTracedRead(Path directory) throws Exception {
+        TestCluster.checkEquals("COMPLETE", TestCluster.send(5558, "APPEND traced hello"), "APPEND");
+        Span root = Tracer.startTrace("test.read");
+        TestCluster.checkEquals("hello", TestCluster.send(5558, root.inject("READ traced")), "traced READ");
+        root.end();
+
+        String traceId = "\"traceId\":\"" + Long.toHexString(root.getTraceId()) + "\"";
+        String nameNodeSpan = "\"name\":\"namenode.request\"";
+        String parent = "\"parentId\":\"" + Long.toHexString(root.getSpanId()) + "\"";
+        long deadline = System.currentTimeMillis() + 10000;
+        boolean nameNodeTraced = false;
+        boolean dataNodeTraced = false;
+        while (!(nameNodeTraced && dataNodeTraced) && System.currentTimeMillis() < deadline) {
+            TestCluster.sleep(100); // The trace writers drain their buffers every 100 ms
+            for (String line : read(directory.resolve("trace_namenode-5558.json"))) {
+                nameNodeTraced |= line.contains(nameNodeSpan) && line.contains(traceId) && line.contains(parent);
+            }
+            for (int i = 1; i <= NameNode.DATA_NODE_COUNT; i++) {
+                for (String line : read(directory.resolve("trace_datanode-" + NameNode.getDataNodePort("D" + i) + ".json"))) {
+                    dataNodeTraced |= line.contains("\"name\":\"datanode.read\"") && line.contains(traceId);
+                }
+            }
+        }
+        TestCluster.check(nameNodeTraced, "no NameNode span of the trace with the client span as its parent");
+        TestCluster.check(dataNodeTraced, "no DataNode read span of the trace");
+
+        // Requests without a trace header record no spans
+        TestCluster.checkEquals("hello", TestCluster.send(5558, "READ traced"), "untraced READ");
+        int spans = read(directory.resolve("trace_namenode-5558.json")).length;
+        TestCluster.sleep(300);
+        TestCluster.checkEquals(spans, read(directory.resolve("trace_namenode-5558.json")).length, "spans of an untraced READ");
+    }
+
+    /**
+     * Reads the lines of a trace file, none if it has not been created yet.
+     */
+    private static String[] read(Path file) throws Exception {
+        return Files.exists(file) ? Files.readString(file).split("\n") : new String[0];
+    }
+}